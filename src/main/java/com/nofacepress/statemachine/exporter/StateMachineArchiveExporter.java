@@ -0,0 +1,294 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.exporter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.springframework.statemachine.StateMachine;
+
+import com.nofacepress.csv4180.CSVWriter;
+import com.nofacepress.statemachine.exporter.base.StateMachineBaseExporter;
+
+/**
+ * Writes the charts of many Spring State Machines in several formats into a
+ * single zip archive, instead of thousands of small files.
+ * <p>
+ * The archive starts with an <code>index.csv</code> manifest listing the entry
+ * and structural fingerprint of each machine and format. Charts are stored as
+ * <code>charts/{name}.{extension}</code>, see {@link #getEntryName}. Charts are
+ * rendered on worker threads while the previous ones are compressed.
+ */
+public class StateMachineArchiveExporter {
+
+	public static final String MANIFEST_NAME = "index.csv";
+	public static final String CHARTS_FOLDER = "charts/";
+
+	/**
+	 * Writes the charts of state machines in every format into a zip archive.
+	 *
+	 * @param machines the Spring StateMachine instances to probe, by id. The id is
+	 *                 also the chart title and file name.
+	 * @param filename the file to save too.
+	 * @throws IOException on file I/O errors
+	 */
+	public static void export(Map<String, ? extends StateMachine<?, ?>> machines, String filename)
+			throws IOException {
+		export(machines, Arrays.asList(StateMachineChartFormat.values()), filename);
+	}
+
+	/**
+	 * Writes the charts of state machines in the given formats into a zip archive.
+	 *
+	 * @param machines the Spring StateMachine instances to probe, by id. The id is
+	 *                 also the chart title and file name.
+	 * @param formats  the chart formats to write, duplicates are ignored.
+	 * @param filename the file to save too.
+	 * @throws IOException on file I/O errors
+	 */
+	public static void export(Map<String, ? extends StateMachine<?, ?>> machines,
+			Collection<StateMachineChartFormat> formats, String filename) throws IOException {
+		try (OutputStream f = new BufferedOutputStream(new FileOutputStream(filename))) {
+			export(machines, formats, f);
+		}
+	}
+
+	/**
+	 * Writes the charts of state machines in the given formats into a zip archive.
+	 *
+	 * @param machines the Spring StateMachine instances to probe, by id. The id is
+	 *                 also the chart title and file name.
+	 * @param formats  the chart formats to write, duplicates are ignored.
+	 * @param output   the output to write to, not closed.
+	 * @throws IOException on file I/O errors
+	 */
+	public static void export(Map<String, ? extends StateMachine<?, ?>> machines,
+			Collection<StateMachineChartFormat> formats, OutputStream output) throws IOException {
+
+		List<String> ids = new ArrayList<String>(machines.keySet());
+		// sort for a predictable output
+		ids.sort(null);
+		// a format listed twice would be a duplicate zip entry
+		Set<StateMachineChartFormat> formatSet = EnumSet.noneOf(StateMachineChartFormat.class);
+		formatSet.addAll(formats);
+
+		Map<String, String> entryIds = new HashMap<String, String>();
+		for (String id : ids) {
+			String previous = entryIds.put(getFileName(id), id);
+			if (previous != null) {
+				throw new IllegalArgumentException(
+						String.format("machine ids \"%s\" and \"%s\" have the same entry name", previous, id));
+			}
+		}
+
+		try (ZipOutputStream zip = new ZipOutputStream(new UnclosedOutputStream(output), StandardCharsets.UTF_8)) {
+			writeEntries(machines, ids, formatSet, zip);
+		}
+	}
+
+	private static void writeEntries(Map<String, ? extends StateMachine<?, ?>> machines, List<String> ids,
+			Set<StateMachineChartFormat> formats, ZipOutputStream zip) throws IOException {
+
+		// the manifest goes first so it can be read without scanning the archive
+		ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+		CSVWriter writer = new CSVWriter(new OutputStreamWriter(manifest, StandardCharsets.UTF_8));
+		writer.writeField("Machine");
+		writer.writeField("Format");
+		writer.writeField("Entry");
+		writer.writeField("Fingerprint");
+		writer.newLine();
+		for (String id : ids) {
+			String fingerprint = StateMachineBaseExporter.fingerprint(machines.get(id));
+			for (StateMachineChartFormat format : formats) {
+				writer.writeField(id);
+				writer.writeField(format.name());
+				writer.writeField(getEntryName(id, format));
+				writer.writeField(fingerprint);
+				writer.newLine();
+			}
+		}
+		writer.flush();
+		writer.close();
+		zip.putNextEntry(new ZipEntry(MANIFEST_NAME));
+		manifest.writeTo(zip);
+		zip.closeEntry();
+
+		// render a few entries ahead on worker threads while this thread compresses
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		int window = threads * 2;
+		List<String> entries = new ArrayList<String>();
+		List<RenderTask> tasks = new ArrayList<RenderTask>();
+		for (String id : ids) {
+			for (StateMachineChartFormat format : formats) {
+				entries.add(getEntryName(id, format));
+				tasks.add(new RenderTask(id, machines.get(id), format));
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<byte[]>> rendered = new ArrayList<Future<byte[]>>(tasks.size());
+			for (int i = 0; i < tasks.size() && i < window; i++) {
+				rendered.add(executor.submit(tasks.get(i)));
+			}
+			for (int i = 0; i < tasks.size(); i++) {
+				byte[] content = rendered.get(i).get();
+				rendered.set(i, null);
+				if (i + window < tasks.size()) {
+					rendered.add(executor.submit(tasks.get(i + window)));
+				}
+				zip.putNextEntry(new ZipEntry(entries.get(i)));
+				zip.write(content);
+				zip.closeEntry();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while exporting");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads a single chart from an archive written by this exporter.
+	 *
+	 * @param filename  the archive to read.
+	 * @param machineId the id of the state machine.
+	 * @param format    the chart format.
+	 * @return the chart, null if it is not in the archive
+	 * @throws IOException on file I/O errors
+	 */
+	public static String read(String filename, String machineId, StateMachineChartFormat format)
+			throws IOException {
+		try (ZipFile archive = new ZipFile(filename, StandardCharsets.UTF_8)) {
+			ZipEntry entry = archive.getEntry(getEntryName(machineId, format));
+			if (entry == null) {
+				return null;
+			}
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			try (InputStream in = archive.getInputStream(entry)) {
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					content.write(buffer, 0, n);
+				}
+			}
+			return new String(content.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Ids are reduced to letters, digits, '_' and '-' so they cannot escape the
+	 * charts folder. Changed ids get a hash of the original id appended to keep
+	 * them apart, the original id is in the manifest.
+	 *
+	 * @param machineId the id of the state machine.
+	 * @param format    the chart format.
+	 * @return the name of the chart in the archive
+	 */
+	public static String getEntryName(String machineId, StateMachineChartFormat format) {
+		return String.format("%s%s.%s", CHARTS_FOLDER, getFileName(machineId), format.getExtension());
+	}
+
+	private static String getFileName(String machineId) {
+		StringBuilder sb = new StringBuilder(machineId.length() + 9);
+		for (int i = 0; i < machineId.length(); i++) {
+			char ch = machineId.charAt(i);
+			if ((ch >= '0' && ch <= '9') || (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || ch == '_'
+					|| ch == '-') {
+				sb.append(ch);
+			} else {
+				sb.append('_');
+			}
+		}
+		if (machineId.isEmpty() || !sb.toString().equals(machineId)) {
+			sb.append('_');
+			sb.append(StateMachineBaseExporter.sha1(machineId), 0, 8);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Finishes the archive on close without closing the output of the caller.
+	 */
+	private static final class UnclosedOutputStream extends FilterOutputStream {
+		UnclosedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
+	private static final class RenderTask implements Callable<byte[]> {
+		private final String machineId;
+		private final StateMachine<?, ?> machine;
+		private final StateMachineChartFormat format;
+
+		RenderTask(String machineId, StateMachine<?, ?> machine, StateMachineChartFormat format) {
+			this.machineId = machineId;
+			this.machine = machine;
+			this.format = format;
+		}
+
+		@Override
+		public byte[] call() throws IOException {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			Writer writer = new OutputStreamWriter(content, StandardCharsets.UTF_8);
+			format.export(machine, machineId, writer);
+			writer.close();
+			return content.toByteArray();
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.exporter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.springframework.statemachine.StateMachine;
+
+/**
+ * The chart formats supported by the exporters, for callers that select the
+ * format at runtime.
+ */
+public enum StateMachineChartFormat {
+
+	plantuml("plantuml", "text/plain; charset=utf-8") {
+		@Override
+		public void export(StateMachine<?, ?> machine, Writer writer, StateMachineExportOptions options)
+				throws IOException {
+			StateMachinePlantUMLExporter.export(machine, writer, options);
+		}
+	},
+	scxml("scxml", "application/scxml+xml; charset=utf-8") {
+		@Override
+		public void export(StateMachine<?, ?> machine, Writer writer, StateMachineExportOptions options)
+				throws IOException {
+			try {
+				StateMachineSCXMLExporter.export(machine, writer, options);
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+		}
+	},
+	lucid("csv", "text/csv; charset=utf-8") {
+		@Override
+		public void export(StateMachine<?, ?> machine, Writer writer, StateMachineExportOptions options)
+				throws IOException {
+			StateMachineLucidChartExporter.export(machine, writer, options);
+		}
+	},
+	json("json", "application/json; charset=utf-8") {
+		@Override
+		public void export(StateMachine<?, ?> machine, Writer writer, StateMachineExportOptions options)
+				throws IOException {
+			StateMachineJSONExporter.export(machine, writer, options);
+		}
+	};
+
+	private final String extension;
+	private final String contentType;
+
+	private StateMachineChartFormat(String extension, String contentType) {
+		this.extension = extension;
+		this.contentType = contentType;
+	}
+
+	/**
+	 * @return the file extension to use, without the dot.
+	 */
+	public String getExtension() {
+		return extension;
+	}
+
+	/**
+	 * @return the MIME content type of the output.
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Creates a chart in this format based on information probed from a Spring
+	 * State Machine.
+	 *
+	 * @param machine the Spring StateMachine instance to probe.
+	 * @param title   the title to put on the chart, null is ok for no title.
+	 *                Ignored by formats without a title.
+	 * @param writer  the output to write to.
+	 * @throws IOException on I/O errors
+	 */
+	public void export(StateMachine<?, ?> machine, String title, Writer writer) throws IOException {
+		export(machine, writer, new StateMachineExportOptions().setTitle(title));
+	}
+
+	/**
+	 * Creates a chart in this format based on information probed from a Spring
+	 * State Machine.
+	 *
+	 * @param machine the Spring StateMachine instance to probe.
+	 * @param writer  the output to write to.
+	 * @param options the title, transition coverage and depth to use.
+	 * @throws IOException on I/O errors
+	 */
+	public abstract void export(StateMachine<?, ?> machine, Writer writer, StateMachineExportOptions options)
+			throws IOException;
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.exporter;
+
+import com.nofacepress.statemachine.exporter.base.StateMachineBaseExporter;
+import com.nofacepress.statemachine.exporter.coverage.TransitionCoverage;
+
+/**
+ * Optional settings shared by all the exporters.
+ */
+public class StateMachineExportOptions {
+
+	private String title = null;
+	private TransitionCoverage coverage = null;
+	private int maxDepth = StateMachineBaseExporter.DEFAULT_MAX_DEPTH;
+
+	/**
+	 * @return the title to put on the chart, null for no title.
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * @param title the title to put on the chart, null is ok for no title. Ignored
+	 *              by formats without a title.
+	 * @return these options
+	 */
+	public StateMachineExportOptions setTitle(String title) {
+		this.title = title;
+		return this;
+	}
+
+	/**
+	 * @return the transition coverage to show, null for none.
+	 */
+	public TransitionCoverage getCoverage() {
+		return coverage;
+	}
+
+	/**
+	 * @param coverage the transition coverage to show, null is ok for none.
+	 * @return these options
+	 */
+	public StateMachineExportOptions setCoverage(TransitionCoverage coverage) {
+		this.coverage = coverage;
+		return this;
+	}
+
+	/**
+	 * @return how many levels of regions and submachines to draw.
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @param maxDepth how many levels of regions and submachines to draw, 0 for
+	 *                 the top level only.
+	 * @return these options
+	 */
+	public StateMachineExportOptions setMaxDepth(int maxDepth) {
+		if (maxDepth < 0) {
+			throw new IllegalArgumentException("maxDepth must not be negative");
+		}
+		this.maxDepth = maxDepth;
+		return this;
+	}
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.exporter;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.springframework.statemachine.StateMachine;
+
+import com.nofacepress.statemachine.exporter.base.StateMachineBaseExporter;
+import com.nofacepress.statemachine.exporter.coverage.TransitionCoverage;
+
+/**
+ * Creates a JSON description of the states and transitions probed from a
+ * Spring State Machine. This is useful for tools that want to draw or check the
+ * state machine themselves.
+ */
+public class StateMachineJSONExporter extends StateMachineBaseExporter {
+
+	/**
+	 * Creates a JSON description of the states and transitions probed from a
+	 * Spring State Machine.
+	 *
+	 * @param machine  the Spring StateMachine instance to probe.
+	 * @param          <S> the class for the state machine states
+	 * @param          <E> the class for the state machine events
+	 * @param title    the title to include, null is ok for no title.
+	 * @param filename the file to save too.
+	 * @throws IOException on file I/O errors
+	 */
+	public static <S, E> void export(final StateMachine<S, E> machine, String title, String filename)
+			throws IOException {
+		OutputStreamWriter f;
+		f = new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8);
+		export(machine, title, new BufferedWriter(f));
+		f.close();
+	}
+
+	/**
+	 * Creates a JSON description of the states and transitions probed from a
+	 * Spring State Machine.
+	 *
+	 * @param machine the Spring StateMachine instance to probe.
+	 * @param         <S> the class for the state machine states
+	 * @param         <E> the class for the state machine events
+	 * @param title   the title to include, null is ok for no title.
+	 * @param writer  the output to write to.
+	 * @throws IOException on file I/O errors
+	 */
+	public static <S, E> void export(final StateMachine<S, E> machine, String title, Writer writer)
+			throws IOException {
+		export(machine, writer, new StateMachineExportOptions().setTitle(title));
+	}
+
+	/**
+	 * Creates a JSON description of the states and transitions probed from a
+	 * Spring State Machine. The states of regions and submachines are listed under
+	 * <code>regions</code> and each transition gets its <code>hits</code> from the
+	 * coverage.
+	 *
+	 * @param machine  the Spring StateMachine instance to probe.
+	 * @param          <S> the class for the state machine states
+	 * @param          <E> the class for the state machine events
+	 * @param filename the file to save too.
+	 * @param options  the title, transition coverage and depth to use.
+	 * @throws IOException on file I/O errors
+	 */
+	public static <S, E> void export(final StateMachine<S, E> machine, String filename,
+			StateMachineExportOptions options) throws IOException {
+		OutputStreamWriter f;
+		f = new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8);
+		export(machine, new BufferedWriter(f), options);
+		f.close();
+	}
+
+	/**
+	 * Creates a JSON description of the states and transitions probed from a
+	 * Spring State Machine. The states of regions and submachines are listed under
+	 * <code>regions</code> and each transition gets its <code>hits</code> from the
+	 * coverage.
+	 *
+	 * @param machine the Spring StateMachine instance to probe.
+	 * @param         <S> the class for the state machine states
+	 * @param         <E> the class for the state machine events
+	 * @param writer  the output to write to.
+	 * @param options the title, transition coverage and depth to use.
+	 * @throws IOException on file I/O errors
+	 */
+	public static <S, E> void export(final StateMachine<S, E> machine, Writer writer,
+			StateMachineExportOptions options) throws IOException {
+
+		String title = options.getTitle();
+		TransitionCoverage coverage = options.getCoverage();
+		HierarchyContext hierarchy = new HierarchyContext(machine, options.getMaxDepth());
+		List<StateInfo> lstates = analyzeStateMachine(machine, hierarchy);
+
+		writer.append("{\n");
+		if (title != null && !title.isEmpty()) {
+			writer.append(String.format("  \"title\": %s,\n", quote(title)));
+		}
+		// the generated id, like the ids and targets of the states
+		String initial = "null";
+		for (StateInfo state : lstates) {
+			if (state.qualifier == StateQualifer.initial) {
+				initial = quote(state.id);
+				break;
+			}
+		}
+		writer.append(String.format("  \"initial\": %s,\n", initial));
+		writer.append("  \"states\": ");
+		writeRegion(writer, lstates, "", "  ", 0, hierarchy, coverage);
+		writer.append("\n}\n");
+
+		writer.flush();
+	}
+
+	/**
+	 * Writes the states of one region as an array. Ids are prefixed with the id
+	 * of the enclosing state as a shared submachine may be included more than
+	 * once.
+	 */
+	private static void writeRegion(Writer writer, List<StateInfo> lstates, String prefix, String indent, int depth,
+			HierarchyContext hierarchy, TransitionCoverage coverage) throws IOException {
+
+		if (lstates.isEmpty()) {
+			writer.append("[]");
+			return;
+		}
+
+		writer.append("[");
+		String stateSeparator = "\n";
+		for (StateInfo source : lstates) {
+			writer.append(stateSeparator);
+			stateSeparator = ",\n";
+
+			writer.append(String.format("%s  {\n%s    \"id\": %s,\n%s    \"name\": %s,\n", indent, indent,
+					quote(prefix + source.id), indent, quote(source.name)));
+			if (source.qualifier != null) {
+				writer.append(String.format("%s    \"qualifier\": %s,\n", indent, quote(source.qualifier.name())));
+			}
+			writer.append(String.format("%s    \"transitions\": [", indent));
+
+			String transitionSeparator = "\n";
+			for (TransitionInfo t : source.transitions) {
+				writer.append(transitionSeparator);
+				transitionSeparator = ",\n";
+				if (coverage != null) {
+					writer.append(String.format("%s      { \"event\": %s, \"target\": %s, \"hits\": %d }", indent,
+							quote(t.event), quote(prefix + t.target.id),
+							coverage.getHits(t.sourceName, t.event, t.targetName)));
+				} else {
+					writer.append(String.format("%s      { \"event\": %s, \"target\": %s }", indent,
+							quote(t.event), quote(prefix + t.target.id)));
+				}
+			}
+			writer.append(source.transitions.isEmpty() ? "]" : String.format("\n%s    ]", indent));
+
+			List<List<StateInfo>> regions = hierarchy.expand(source, depth);
+			if (!regions.isEmpty()) {
+				writer.append(String.format(",\n%s    \"regions\": [", indent));
+				String regionSeparator = "\n";
+				for (List<StateInfo> region : regions) {
+					writer.append(regionSeparator);
+					regionSeparator = ",\n";
+					writer.append(indent + "      ");
+					writeRegion(writer, region, prefix + source.id + "__", indent + "      ", depth + 1, hierarchy,
+							coverage);
+				}
+				writer.append(String.format("\n%s    ]", indent));
+			}
+			writer.append(String.format("\n%s  }", indent));
+		}
+		writer.append(String.format("\n%s]", indent));
+	}
+
+	/**
+	 * Quotes and escapes a string per RFC 8259.
+	 */
+	protected static String quote(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			switch (ch) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (ch < 0x20) {
+					sb.append(String.format("\\u%04x", (int) ch));
+				} else {
+					sb.append(ch);
+				}
+			}
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+
+}
@@ -21,12 +21,14 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.springframework.statemachine.StateMachine;
 
 import com.nofacepress.csv4180.CSVWriter;
 import com.nofacepress.statemachine.exporter.base.StateMachineBaseExporter;
+import com.nofacepress.statemachine.exporter.coverage.TransitionCoverage;
 
 /**
  * Creates a Lucid Chart state chart based on information probed from a Spring
@@ -67,8 +69,48 @@ public class StateMachineLucidChartExporter extends StateMachineBaseExporter {
 	 */
 	public static <S, E> void export(final StateMachine<S, E> machine, String pageTitle, Writer output)
 			throws IOException {
+		export(machine, output, new StateMachineExportOptions().setTitle(pageTitle));
+	}
+
+	/**
+	 * Creates a Lucid Chart state chart based on information probed from a Spring
+	 * State Machine. The states of regions and submachines are contained by their
+	 * composite state and transitions are labeled with their coverage.
+	 * 
+	 * @param machine  the Spring StateMachine instance to probe.
+	 * @param          <S> the class for the state machine states
+	 * @param          <E> the class for the state machine events
+	 * @param filename the file to save too.
+	 * @param options  the title, transition coverage and depth to use.
+	 * @throws IOException on file I/O errors
+	 */
+	public static <S, E> void export(final StateMachine<S, E> machine, String filename,
+			StateMachineExportOptions options) throws IOException {
+		OutputStreamWriter f;
+		f = new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8);
+		export(machine, new BufferedWriter(f), options);
+		f.close();
+	}
+
+	/**
+	 * Creates a Lucid Chart state chart based on information probed from a Spring
+	 * State Machine. The states of regions and submachines are contained by their
+	 * composite state and transitions are labeled with their coverage.
+	 * 
+	 * @param machine the Spring StateMachine instance to probe.
+	 * @param         <S> the class for the state machine states
+	 * @param         <E> the class for the state machine events
+	 * @param output  the output to write to.
+	 * @param options the title, transition coverage and depth to use.
+	 * @throws IOException on file I/O errors
+	 */
+	public static <S, E> void export(final StateMachine<S, E> machine, Writer output,
+			StateMachineExportOptions options) throws IOException {
 
-		List<StateInfo> lstates = analyzeStateMachine(machine);
+		String pageTitle = options.getTitle() == null ? "" : options.getTitle();
+		TransitionCoverage coverage = options.getCoverage();
+		HierarchyContext hierarchy = new HierarchyContext(machine, options.getMaxDepth());
+		List<StateInfo> lstates = analyzeStateMachine(machine, hierarchy);
 
 		CSVWriter writer = new CSVWriter(output);
 
@@ -77,7 +119,7 @@ public class StateMachineLucidChartExporter extends StateMachineBaseExporter {
 		writer.writeField("Name");
 		writer.writeField("Shape Library");
 		writer.writeField("Page ID");
-		writer.writeField("Contained B");
+		writer.writeField("Contained By");
 		writer.writeField("Line Source");
 		writer.writeField("Line Destination");
 		writer.writeField("Source Arrow");
@@ -104,55 +146,94 @@ public class StateMachineLucidChartExporter extends StateMachineBaseExporter {
 
 		final int INDEX_OFFSET = 2;
 
-		// write out the states
-		for (StateInfo source : lstates) {
-			String label = source.name;
-			if (source.qualifier != null) {
-				label = String.format("%s\n<%s>", source.name, source.qualifier.name());
-			}
-
-			writer.writeField("" + (source.index + INDEX_OFFSET));
-			writer.writeField("State Name");
-			writer.writeField("UML");
-			writer.writeField("1");
-			writer.writeField("");
-			writer.writeField("");
-			writer.writeField("");
-			writer.writeField("");
-			writer.writeField("");
-			writer.writeField(label);
-			writer.writeField("");
-			writer.writeField("");
-			writer.newLine();
+		// each region gets a block of ids, substates are placed after their parents
+		List<Placement> placements = new ArrayList<Placement>();
+		placements.add(new Placement(lstates, INDEX_OFFSET, 0, ""));
+		int nextId = INDEX_OFFSET + lstates.size();
 
-		}
-
-		int lineCounter = INDEX_OFFSET + lstates.size();
-		// write out the transitions
-		for (StateInfo source : lstates) {
-
-			for (TransitionInfo t : source.transitions) {
-
-				writer.writeField("" + (lineCounter++));
-				writer.writeField("Line");
-				writer.writeField("");
+		// write out the states
+		for (int p = 0; p < placements.size(); p++) {
+			Placement placement = placements.get(p);
+			for (StateInfo source : placement.states) {
+				String label = source.name;
+				if (source.qualifier != null) {
+					label = String.format("%s\n<%s>", source.name, source.qualifier.name());
+				}
+				int id = placement.offset + source.index;
+
+				writer.writeField("" + id);
+				writer.writeField("State Name");
+				writer.writeField("UML");
 				writer.writeField("1");
+				writer.writeField(placement.container);
+				writer.writeField("");
+				writer.writeField("");
+				writer.writeField("");
 				writer.writeField("");
-				writer.writeField("" + (source.index + INDEX_OFFSET));
-				writer.writeField("" + (t.target.index + INDEX_OFFSET));
-				writer.writeField("None");
-				writer.writeField("Arrow");
-				writer.writeField(t.event);
+				writer.writeField(label);
 				writer.writeField("");
 				writer.writeField("");
 				writer.newLine();
 
+				for (List<StateInfo> region : hierarchy.expand(source, placement.depth)) {
+					placements.add(new Placement(region, nextId, placement.depth + 1, "" + id));
+					nextId += region.size();
+				}
 			}
+		}
+
+		int lineCounter = nextId;
+		// write out the transitions
+		for (Placement placement : placements) {
+			for (StateInfo source : placement.states) {
+
+				for (TransitionInfo t : source.transitions) {
+
+					String label = t.event;
+					if (coverage != null) {
+						long hits = coverage.getHits(t.sourceName, t.event, t.targetName);
+						label = hits > 0 ? String.format("%s (%d)", t.event, hits)
+								: String.format("%s (not exercised)", t.event);
+					}
+
+					writer.writeField("" + (lineCounter++));
+					writer.writeField("Line");
+					writer.writeField("");
+					writer.writeField("1");
+					writer.writeField("");
+					writer.writeField("" + (placement.offset + source.index));
+					writer.writeField("" + (placement.offset + t.target.index));
+					writer.writeField("None");
+					writer.writeField("Arrow");
+					writer.writeField(label);
+					writer.writeField("");
+					writer.writeField("");
+					writer.newLine();
+
+				}
 
+			}
 		}
 
 		writer.flush();
 		writer.close();
 	}
 
+	/**
+	 * The states of one region and where they are placed in the chart.
+	 */
+	private static final class Placement {
+		final List<StateInfo> states;
+		final int offset;
+		final int depth;
+		final String container;
+
+		Placement(List<StateInfo> states, int offset, int depth, String container) {
+			this.states = states;
+			this.offset = offset;
+			this.depth = depth;
+			this.container = container;
+		}
+	}
+
 }
@@ -26,6 +26,7 @@ import java.util.List;
 import org.springframework.statemachine.StateMachine;
 
 import com.nofacepress.statemachine.exporter.base.StateMachineBaseExporter;
+import com.nofacepress.statemachine.exporter.coverage.TransitionCoverage;
 
 /**
  * Creates a PlanetUML state chart based on information probed from a Spring
@@ -47,6 +48,9 @@ public class StateMachinePlantUMLExporter extends StateMachineBaseExporter {
 		public static final String BEGIN_STATE = "[*]";
 		public static final String TITLE_PARAM = "title";
 		public static final String MONOCHROME = "skinparam monochrome true";
+		public static final String REGION_SEPARATOR = "--";
+		public static final String EXERCISED_STYLE = "[bold]";
+		public static final String NOT_EXERCISED_STYLE = "[#gray,dashed]";
 	}
 
 	/**
@@ -81,13 +85,48 @@ public class StateMachinePlantUMLExporter extends StateMachineBaseExporter {
 	 * @throws IOException on file I/O errors
 	 */
 	public static <S, E> void export(final StateMachine<S, E> machine, String title, Writer writer) throws IOException {
+		export(machine, writer, new StateMachineExportOptions().setTitle(title));
+	}
 
-		List<StateInfo> lstates = analyzeStateMachine(machine);
+	/**
+	 * Creates a PlanetUML state chart based on information probed from a Spring
+	 * State Machine. Regions and submachines are drawn as composite states and
+	 * transitions never exercised in the coverage as grey dashed arrows.
+	 * 
+	 * @param machine  the Spring StateMachine instance to probe.
+	 * @param          <S> the class for the state machine states
+	 * @param          <E> the class for the state machine events
+	 * @param filename the file to save too.
+	 * @param options  the title, transition coverage and depth to use.
+	 * @throws IOException on file I/O errors
+	 */
+	public static <S, E> void export(final StateMachine<S, E> machine, String filename,
+			StateMachineExportOptions options) throws IOException {
+		OutputStreamWriter f;
+		f = new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8);
+		export(machine, new BufferedWriter(f), options);
+		f.close();
+	}
 
-		final String[] arrowsFromAbove = { PlanetUMLConstants.DOWN_ARROW, PlanetUMLConstants.RIGHT_ARROW,
-				PlanetUMLConstants.LEFT_ARROW };
-		final String[] arrowsFromBelow = { PlanetUMLConstants.UP_ARROW, PlanetUMLConstants.LEFT_ARROW,
-				PlanetUMLConstants.RIGHT_ARROW };
+	/**
+	 * Creates a PlanetUML state chart based on information probed from a Spring
+	 * State Machine. Regions and submachines are drawn as composite states and
+	 * transitions never exercised in the coverage as grey dashed arrows.
+	 * 
+	 * @param machine the Spring StateMachine instance to probe.
+	 * @param         <S> the class for the state machine states
+	 * @param         <E> the class for the state machine events
+	 * @param writer  the output to write to.
+	 * @param options the title, transition coverage and depth to use.
+	 * @throws IOException on file I/O errors
+	 */
+	public static <S, E> void export(final StateMachine<S, E> machine, Writer writer,
+			StateMachineExportOptions options) throws IOException {
+
+		String title = options.getTitle();
+		TransitionCoverage coverage = options.getCoverage();
+		HierarchyContext hierarchy = new HierarchyContext(machine, options.getMaxDepth());
+		List<StateInfo> lstates = analyzeStateMachine(machine, hierarchy);
 
 		writer.append(PlanetUMLConstants.START_UML + "\n");
 		writer.append(PlanetUMLConstants.MONOCHROME + "\n");
@@ -96,6 +135,27 @@ public class StateMachinePlantUMLExporter extends StateMachineBaseExporter {
 			writer.append(String.format("%s %s\n", PlanetUMLConstants.TITLE_PARAM, title));
 		}
 
+		writeRegion(writer, lstates, "", "", 0, hierarchy, coverage);
+
+		writer.append(PlanetUMLConstants.END_UML + "\n");
+
+		writer.flush();
+
+	}
+
+	/**
+	 * Writes the states of one region, then their transitions. Ids are prefixed
+	 * with the id of the enclosing state as a shared submachine may be drawn
+	 * more than once.
+	 */
+	private static void writeRegion(Writer writer, List<StateInfo> lstates, String prefix, String indent, int depth,
+			HierarchyContext hierarchy, TransitionCoverage coverage) throws IOException {
+
+		final String[] arrowsFromAbove = { PlanetUMLConstants.DOWN_ARROW, PlanetUMLConstants.RIGHT_ARROW,
+				PlanetUMLConstants.LEFT_ARROW };
+		final String[] arrowsFromBelow = { PlanetUMLConstants.UP_ARROW, PlanetUMLConstants.LEFT_ARROW,
+				PlanetUMLConstants.RIGHT_ARROW };
+
 		for (StateInfo state : lstates) {
 			String label = "";
 			String clazz = "";
@@ -103,37 +163,62 @@ public class StateMachinePlantUMLExporter extends StateMachineBaseExporter {
 				label = String.format("\\n[<i>%s</i>]", state.qualifier.name());
 				clazz = String.format(" <<%s>>", state.qualifier.name());
 			}
-			writer.append(String.format("%s \"%s%s\" %s %s%s\n", PlanetUMLConstants.STATE_PARAM, state.name, label,
-					PlanetUMLConstants.AS, state.id, clazz));
+			List<List<StateInfo>> regions = hierarchy.expand(state, depth);
+			if (regions.isEmpty()) {
+				writer.append(String.format("%s%s \"%s%s\" %s %s%s\n", indent, PlanetUMLConstants.STATE_PARAM,
+						state.name, label, PlanetUMLConstants.AS, prefix + state.id, clazz));
+			} else {
+				writer.append(String.format("%s%s \"%s%s\" %s %s%s {\n", indent, PlanetUMLConstants.STATE_PARAM,
+						state.name, label, PlanetUMLConstants.AS, prefix + state.id, clazz));
+				for (int i = 0; i < regions.size(); i++) {
+					if (i > 0) {
+						writer.append(indent + "  " + PlanetUMLConstants.REGION_SEPARATOR + "\n");
+					}
+					writeRegion(writer, regions.get(i), prefix + state.id + "__", indent + "  ", depth + 1,
+							hierarchy, coverage);
+				}
+				writer.append(indent + "}\n");
+			}
 		}
 
 		for (StateInfo source : lstates) {
+			String sourceId = prefix + source.id;
 			if (source.qualifier == StateQualifer.initial) {
-				writer.append(String.format("%s %s %s\n", PlanetUMLConstants.BEGIN_STATE,
-						PlanetUMLConstants.RIGHT_ARROW, source.id));
+				writer.append(String.format("%s%s %s %s\n", indent, PlanetUMLConstants.BEGIN_STATE,
+						PlanetUMLConstants.RIGHT_ARROW, sourceId));
 			}
 			if (source.qualifier == StateQualifer.done) {
-				writer.append(String.format("%s %s %s\n", source.id, PlanetUMLConstants.DOWN_ARROW,
+				writer.append(String.format("%s%s %s %s\n", indent, sourceId, PlanetUMLConstants.DOWN_ARROW,
 						PlanetUMLConstants.END_STATE));
 			} else {
 				int aboveN = 0;
 				int belowN = 0;
 				for (TransitionInfo t : source.transitions) {
+					String arrow;
 					if (t.target.index >= source.index) {
-						writer.append(String.format("%s %s %s : %s\n", source.id, arrowsFromAbove[aboveN++ % 3],
-								t.target.id, t.event));
+						arrow = arrowsFromAbove[aboveN++ % 3];
 					} else {
-						writer.append(String.format("%s %s %s : %s\n", source.id, arrowsFromBelow[belowN++ % 3],
-								t.target.id, t.event));
+						arrow = arrowsFromBelow[belowN++ % 3];
+					}
+					String label = t.event;
+					if (coverage != null) {
+						long hits = coverage.getHits(t.sourceName, t.event, t.targetName);
+						if (hits > 0) {
+							arrow = "-" + PlanetUMLConstants.EXERCISED_STYLE + arrow.substring(1);
+							label = String.format("%s (%d)", t.event, hits);
+						} else {
+							arrow = "-" + PlanetUMLConstants.NOT_EXERCISED_STYLE + arrow.substring(1);
+						}
+					}
+					if (label.isEmpty()) {
+						writer.append(String.format("%s%s %s %s\n", indent, sourceId, arrow, prefix + t.target.id));
+					} else {
+						writer.append(String.format("%s%s %s %s : %s\n", indent, sourceId, arrow,
+								prefix + t.target.id, label));
 					}
 				}
 			}
 		}
-
-		writer.append(PlanetUMLConstants.END_UML + "\n");
-
-		writer.flush();
-
 	}
 
 }
@@ -30,6 +30,7 @@ import javax.xml.stream.XMLStreamWriter;
 import org.springframework.statemachine.StateMachine;
 
 import com.nofacepress.statemachine.exporter.base.StateMachineBaseExporter;
+import com.nofacepress.statemachine.exporter.coverage.TransitionCoverage;
 
 /**
  * Creates a SCXML state chart based on information probed from a Spring State
@@ -37,6 +38,10 @@ import com.nofacepress.statemachine.exporter.base.StateMachineBaseExporter;
  */
 public class StateMachineSCXMLExporter extends StateMachineBaseExporter {
 
+	/// namespace of the transition coverage attributes
+	public static final String COVERAGE_NAMESPACE = "http://nofacepress.com/statemachine/coverage";
+	public static final String COVERAGE_PREFIX = "coverage";
+
 	/**
 	 * Creates a SCXML state chart based on information probed from a Spring State
 	 * Machine.
@@ -69,8 +74,53 @@ public class StateMachineSCXMLExporter extends StateMachineBaseExporter {
 	 */
 	public static <S, E> void export(final StateMachine<S, E> machine, Writer output)
 			throws IOException, XMLStreamException {
+		export(machine, output, new StateMachineExportOptions());
+	}
 
-		List<StateInfo> lstates = analyzeStateMachine(machine);
+	/**
+	 * Creates a SCXML state chart based on information probed from a Spring State
+	 * Machine. Regions and submachines are nested, orthogonal regions in a
+	 * <code>parallel</code> element, and the number of times each transition was
+	 * exercised is added as a <code>coverage:hits</code> attribute.
+	 * 
+	 * @param machine  the Spring StateMachine instance to probe.
+	 * @param          <S> the class for the state machine states
+	 * @param          <E> the class for the state machine events
+	 * @param filename the file to save too.
+	 * @param options  the transition coverage and depth to use, the title is
+	 *                 ignored.
+	 * @throws IOException        on file I/O errors
+	 * @throws XMLStreamException on XML stream error
+	 */
+	public static <S, E> void export(final StateMachine<S, E> machine, String filename,
+			StateMachineExportOptions options) throws IOException, XMLStreamException {
+		OutputStreamWriter f;
+		f = new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8);
+		export(machine, new BufferedWriter(f), options);
+		f.close();
+	}
+
+	/**
+	 * Creates a SCXML state chart based on information probed from a Spring State
+	 * Machine. Regions and submachines are nested, orthogonal regions in a
+	 * <code>parallel</code> element, and the number of times each transition was
+	 * exercised is added as a <code>coverage:hits</code> attribute.
+	 * 
+	 * @param machine the Spring StateMachine instance to probe.
+	 * @param         <S> the class for the state machine states
+	 * @param         <E> the class for the state machine events
+	 * @param output  the output to write to.
+	 * @param options the transition coverage and depth to use, the title is
+	 *                ignored.
+	 * @throws IOException        on file I/O errors
+	 * @throws XMLStreamException on XML stream error
+	 */
+	public static <S, E> void export(final StateMachine<S, E> machine, Writer output,
+			StateMachineExportOptions options) throws IOException, XMLStreamException {
+
+		TransitionCoverage coverage = options.getCoverage();
+		HierarchyContext hierarchy = new HierarchyContext(machine, options.getMaxDepth());
+		List<StateInfo> lstates = analyzeStateMachine(machine, hierarchy);
 
 		XMLOutputFactory factory = XMLOutputFactory.newInstance();
 		XMLStreamWriter writer = factory.createXMLStreamWriter(output);
@@ -79,30 +129,84 @@ public class StateMachineSCXMLExporter extends StateMachineBaseExporter {
 		writer.writeCharacters("\n");
 		writer.writeStartElement("scxml");
 		writer.writeAttribute("xmlns", "http://www.w3.org/2005/07/scxml");
+		if (coverage != null) {
+			writer.writeNamespace(COVERAGE_PREFIX, COVERAGE_NAMESPACE);
+		}
 		writer.writeAttribute("version", "1.0");
 		writer.writeAttribute("initial", machine.getInitialState().getId().toString());
 
+		writeRegion(writer, lstates, "", "\n  ", 0, hierarchy, coverage);
+
+		writer.writeEndElement();
+		writer.writeCharacters("\n");
+		writer.writeEndDocument();
+		writer.flush();
+
+	}
+
+	/**
+	 * Writes the states of one region. Ids are prefixed with the id of the
+	 * enclosing state as a shared submachine may be included more than once.
+	 */
+	private static void writeRegion(XMLStreamWriter writer, List<StateInfo> lstates, String prefix, String indent,
+			int depth, HierarchyContext hierarchy, TransitionCoverage coverage) throws XMLStreamException {
+
 		for (StateInfo source : lstates) {
-			writer.writeCharacters("\n  ");
-			writer.writeStartElement("state");
-			writer.writeAttribute("id", source.name);
+			List<List<StateInfo>> regions = hierarchy.expand(source, depth);
+
+			writer.writeCharacters(indent);
+			if (regions.size() > 1) {
+				writer.writeStartElement("parallel");
+			} else {
+				writer.writeStartElement("state");
+			}
+			String id = prefix + source.name;
+			writer.writeAttribute("id", id);
+			if (regions.size() == 1) {
+				writeInitial(writer, regions.get(0), id + "__");
+			}
 
 			for (TransitionInfo t : source.transitions) {
-				writer.writeCharacters("\n    ");
+				writer.writeCharacters(indent + "  ");
 				writer.writeStartElement("transition");
-				writer.writeAttribute("event", t.event);
-				writer.writeAttribute("target", t.target.name);
+				if (!t.event.isEmpty()) {
+					writer.writeAttribute("event", t.event);
+				}
+				writer.writeAttribute("target", prefix + t.target.name);
+				if (coverage != null) {
+					writer.writeAttribute(COVERAGE_PREFIX, COVERAGE_NAMESPACE, "hits",
+							Long.toString(coverage.getHits(t.sourceName, t.event, t.targetName)));
+				}
 				writer.writeEndElement();
 			}
 
+			if (regions.size() == 1) {
+				writeRegion(writer, regions.get(0), id + "__", indent + "  ", depth + 1, hierarchy, coverage);
+			} else {
+				for (int i = 0; i < regions.size(); i++) {
+					writer.writeCharacters(indent + "  ");
+					writer.writeStartElement("state");
+					String regionId = String.format("%s_region_%d", id, i + 1);
+					writer.writeAttribute("id", regionId);
+					writeInitial(writer, regions.get(i), regionId + "__");
+					writeRegion(writer, regions.get(i), regionId + "__", indent + "    ", depth + 1, hierarchy,
+							coverage);
+					writer.writeEndElement();
+				}
+			}
+
 			writer.writeEndElement();
 		}
+	}
 
-		writer.writeEndElement();
-		writer.writeCharacters("\n");
-		writer.writeEndDocument();
-		writer.flush();
-
+	private static void writeInitial(XMLStreamWriter writer, List<StateInfo> lstates, String prefix)
+			throws XMLStreamException {
+		for (StateInfo state : lstates) {
+			if (state.qualifier == StateQualifer.initial) {
+				writer.writeAttribute("initial", prefix + state.name);
+				return;
+			}
+		}
 	}
 
 }
@@ -15,13 +15,22 @@
  */
 package com.nofacepress.statemachine.exporter.base;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.region.Region;
+import org.springframework.statemachine.state.AbstractState;
 import org.springframework.statemachine.state.State;
 import org.springframework.statemachine.transition.Transition;
 
@@ -32,13 +41,27 @@ import org.springframework.statemachine.transition.Transition;
  */
 public class StateMachineBaseExporter {
 
+	/// how many levels of substates are drawn unless told otherwise
+	public static final int DEFAULT_MAX_DEPTH = 3;
+
 	protected static class StateInfo extends StateInfoBase {
 		public List<TransitionInfo> transitions = new ArrayList<TransitionInfo>();
+		/// the regions or submachine of a composite state, analyzed on demand
+		public List<Region<?, ?>> regions = new ArrayList<Region<?, ?>>();
+		/// the transitions between substates in the same region, handed down to the
+		/// analysis of that region
+		public List<Transition<?, ?>> nestedTransitions = new ArrayList<Transition<?, ?>>();
 
 		public void addTransition(StateInfo targetState, String event) {
+			addTransition(targetState, event, name, targetState.name);
+		}
+
+		public void addTransition(StateInfo targetState, String event, String sourceName, String targetName) {
 			TransitionInfo t = new TransitionInfo();
 			t.target = targetState;
 			t.event = event;
+			t.sourceName = sourceName;
+			t.targetName = targetName;
 			transitions.add(t);
 		}
 
@@ -78,7 +101,117 @@ public class StateMachineBaseExporter {
 	protected static class TransitionInfo {
 		public StateInfoBase target;
 		public String event;
+		/// the states the transition really leaves and enters, substates when it is
+		/// drawn on a composite state
+		public String sourceName;
+		public String targetName;
+
+	}
+
+	/**
+	 * Expands composite states while a chart is rendered. Substates are only
+	 * analyzed when they are expanded, and a region or submachine shared by
+	 * several states is analyzed once.
+	 */
+	protected static class HierarchyContext {
+		public final int maxDepth;
+		private final StateMachine<?, ?> machine;
+		private final Map<Region<?, ?>, List<StateInfo>> analyzed = new IdentityHashMap<Region<?, ?>, List<StateInfo>>();
+		/// the regions directly containing each state id and the ids of the states
+		/// directly containing each region, indexed when a substate is first looked up
+		private Map<Object, List<Region<?, ?>>> containers = null;
+		private Map<Region<?, ?>, List<Object>> owners = null;
+
+		/**
+		 * @param machine  the state machine being rendered.
+		 * @param maxDepth how many levels of substates to expand, 0 for none.
+		 */
+		public HierarchyContext(StateMachine<?, ?> machine, int maxDepth) {
+			this.machine = machine;
+			this.maxDepth = maxDepth;
+		}
+
+		/**
+		 * @param state the state to expand.
+		 * @param depth the depth of the state, 0 for the top level.
+		 * @return the analyzed states of each region of the state, empty if the
+		 *         state is simple or too deep to expand.
+		 */
+		public List<List<StateInfo>> expand(StateInfo state, int depth) {
+			if (depth >= maxDepth || state.regions.isEmpty()) {
+				return Collections.emptyList();
+			}
+			List<List<StateInfo>> result = new ArrayList<List<StateInfo>>(state.regions.size());
+			for (Region<?, ?> region : state.regions) {
+				List<StateInfo> states = analyzed.get(region);
+				if (states == null) {
+					states = analyzeRegion(region, state.nestedTransitions, this);
+					analyzed.put(region, states);
+				}
+				result.add(states);
+			}
+			// Spring does not keep the order of orthogonal regions
+			result.sort((a, b) -> regionName(a).compareTo(regionName(b)));
+			return result;
+		}
+
+		private static String regionName(List<StateInfo> states) {
+			// the initial state is sorted first
+			return states.isEmpty() ? "" : states.get(0).name;
+		}
+
+		/**
+		 * Finds the states of a region that contain a substate, at any depth.
+		 * 
+		 * @param id     the id of the substate.
+		 * @param region the region to search.
+		 * @return the ids of the states of the region containing the substate, each
+		 *         with its own region the substate is in. Empty if the substate is
+		 *         not below the region.
+		 */
+		public Map<Object, Region<?, ?>> findOwners(Object id, Region<?, ?> region) {
+			if (containers == null) {
+				containers = new HashMap<Object, List<Region<?, ?>>>();
+				owners = new IdentityHashMap<Region<?, ?>, List<Object>>();
+				index(machine);
+			}
+			Map<Object, Region<?, ?>> result = new LinkedHashMap<Object, Region<?, ?>>();
+			findOwners(id, region, result, Collections.newSetFromMap(new IdentityHashMap<Region<?, ?>, Boolean>()));
+			return result;
+		}
 
+		private void findOwners(Object id, Region<?, ?> region, Map<Object, Region<?, ?>> result,
+				Set<Region<?, ?>> visited) {
+			for (Region<?, ?> container : containers.getOrDefault(id, Collections.emptyList())) {
+				if (container == region || !visited.add(container)) {
+					continue;
+				}
+				for (Object owner : owners.getOrDefault(container, Collections.emptyList())) {
+					if (containers.get(owner).contains(region)) {
+						result.putIfAbsent(owner, container);
+					} else {
+						findOwners(owner, region, result, visited);
+					}
+				}
+			}
+		}
+
+		private void index(Region<?, ?> region) {
+			for (State<?, ?> s : region.getStates()) {
+				containers.computeIfAbsent(s.getId(), (k) -> new ArrayList<Region<?, ?>>()).add(region);
+				for (Region<?, ?> nested : getNestedRegions(s)) {
+					List<Object> ids = owners.get(nested);
+					if (ids == null) {
+						ids = new ArrayList<Object>();
+						owners.put(nested, ids);
+						ids.add(s.getId());
+						index(nested);
+					} else {
+						ids.add(s.getId());
+					}
+				}
+			}
+		}
 	}
 
 	protected static <S, E> int getPathLength(StateInfo info) {
@@ -100,9 +233,51 @@ public class StateMachineBaseExporter {
 	}
 
 	protected static <S, E> List<StateInfo> analyzeStateMachine(StateMachine<S, E> machine) {
-		State<S, E> initialState = machine.getInitialState();
-		Collection<State<S, E>> states = machine.getStates();
-		Collection<Transition<S, E>> transitions = machine.getTransitions();
+		return analyzeStateMachine(machine, new HierarchyContext(machine, DEFAULT_MAX_DEPTH));
+	}
+
+	/**
+	 * Analyzes the top level states of a state machine.
+	 * 
+	 * @param hierarchy the context the composite states will be expanded with.
+	 */
+	protected static <S, E> List<StateInfo> analyzeStateMachine(StateMachine<S, E> machine,
+			HierarchyContext hierarchy) {
+		return analyzeRegion(machine, Collections.emptyList(), hierarchy);
+	}
+
+	/**
+	 * Analyzes the states directly in a state machine or region. The regions and
+	 * submachines of composite states are recorded but not analyzed, see
+	 * {@link HierarchyContext}.
+	 * 
+	 * @param handedDown the transitions between states of the region recorded by
+	 *                   the enclosing region.
+	 */
+	@SuppressWarnings("unchecked")
+	protected static <S, E> List<StateInfo> analyzeRegion(Region<S, E> region, List<Transition<?, ?>> handedDown,
+			HierarchyContext hierarchy) {
+		// regions are state machines in practice, which know their initial state
+		State<S, E> initialState = null;
+		if (region instanceof StateMachine) {
+			initialState = ((StateMachine<S, E>) region).getInitialState();
+		}
+		Collection<State<S, E>> states = region.getStates();
+
+		// a state machine built by Spring keeps all the transitions at the top level,
+		// those between substates are handed down by the enclosing regions
+		List<Transition<S, E>> transitions = new ArrayList<Transition<S, E>>();
+		Set<Transition<?, ?>> seen = Collections.newSetFromMap(new IdentityHashMap<Transition<?, ?>, Boolean>());
+		for (Transition<?, ?> t : handedDown) {
+			if (seen.add(t)) {
+				transitions.add((Transition<S, E>) t);
+			}
+		}
+		for (Transition<S, E> t : region.getTransitions()) {
+			if (seen.add(t)) {
+				transitions.add(t);
+			}
+		}
 
 		List<StateInfo> stateList = new ArrayList<StateInfo>();
 		Map<S, StateInfo> stateMAP = new HashMap<S, StateInfo>();
@@ -113,6 +288,7 @@ public class StateMachineBaseExporter {
 		for (State<S, E> s : states) {
 			StateInfo info = new StateInfo();
 			info.name = s.getId().toString();
+			info.regions.addAll(getNestedRegions(s));
 			stateMAP.put(s.getId(), info);
 			stateList.add(info);
 			if (s == initialState) {
@@ -120,20 +296,34 @@ public class StateMachineBaseExporter {
 			}
 		}
 
-		// walk all the transitions
+		// walk all the transitions, those into or out of substates are drawn on the
+		// composite states, from each of them for a shared submachine
 		for (Transition<S, E> t : transitions) {
-			State<S, E> sourceState = t.getSource();
-			StateInfo source = stateMAP.get(sourceState.getId());
-			State<S, E> targetState = t.getTarget();
-			StateInfo target = stateMAP.get(targetState.getId());
-			String event = t.getTrigger().getEvent().toString();
-			source.addTransition(target, event);
-			target.targeted = true; // help of determine if this node is reachable in the normal flow
+			S sourceId = t.getSource().getId();
+			S targetId = t.getTarget().getId();
+			Map<Object, Region<?, ?>> sources = findStates(sourceId, region, stateMAP, hierarchy);
+			Map<Object, Region<?, ?>> targets = findStates(targetId, region, stateMAP, hierarchy);
+			if (sources.isEmpty() || targets.isEmpty()) {
+				continue; // drawn by the region enclosing both states
+			}
+			for (Map.Entry<Object, Region<?, ?>> source : sources.entrySet()) {
+				StateInfo info = stateMAP.get(source.getKey());
+				if (source.getValue() != null && targets.get(source.getKey()) == source.getValue()) {
+					info.nestedTransitions.add(t); // stays inside a region, drawn there
+					continue;
+				}
+				StateInfo target = stateMAP
+						.get(targets.containsKey(source.getKey()) ? source.getKey() : targets.keySet().iterator().next());
+				info.addTransition(target, getEventName(t), sourceId.toString(), targetId.toString());
+				target.targeted = true; // help of determine if this node is reachable in the normal flow
+			}
 		}
 
 		// compute path lengths, starting with the initial
-		initial.qualifier = StateQualifer.initial;
-		getPathLength(initial);
+		if (initial != null) {
+			initial.qualifier = StateQualifer.initial;
+			getPathLength(initial);
+		}
 		for (StateInfo s : stateList) {
 			if (s.pathlength < 0) {
 				getPathLength(s);
@@ -163,6 +353,131 @@ public class StateMachineBaseExporter {
 		return stateList;
 	}
 
+	/**
+	 * Computes a fingerprint of the structure (states, events and transitions) of
+	 * a Spring State Machine. Machines with the same structure produce the same
+	 * fingerprint regardless of the order the states and transitions are
+	 * reported in, so it can be used to detect when a rendered chart is stale.
+	 * This is much cheaper than analyzing and rendering the machine.
+	 * 
+	 * @param machine the Spring StateMachine instance to probe.
+	 * @param         <S> the class for the state machine states
+	 * @param         <E> the class for the state machine events
+	 * @return the fingerprint as a hex string
+	 */
+	public static <S, E> String fingerprint(StateMachine<S, E> machine) {
+		return fingerprint(machine, new IdentityHashMap<Region<?, ?>, String>(),
+				Collections.newSetFromMap(new IdentityHashMap<Region<?, ?>, Boolean>()));
+	}
+
+	/**
+	 * Fingerprints a region. Nested regions are included by their own
+	 * fingerprint, sorted as Spring does not keep the order of orthogonal regions.
+	 */
+	private static <S, E> String fingerprint(Region<S, E> region, Map<Region<?, ?>, String> done,
+			Set<Region<?, ?>> open) {
+		String fingerprint = done.get(region);
+		if (fingerprint != null) {
+			return fingerprint;
+		}
+		open.add(region);
+
+		List<String> parts = new ArrayList<String>();
+		if (region instanceof StateMachine) {
+			State<S, E> initialState = ((StateMachine<S, E>) region).getInitialState();
+			if (initialState != null) {
+				parts.add("I:" + initialState.getId());
+			}
+		}
+		for (State<S, E> s : region.getStates()) {
+			parts.add("S:" + s.getId());
+			List<String> nested = new ArrayList<String>();
+			for (Region<S, E> r : getNestedRegions(s)) {
+				nested.add(open.contains(r) ? "cycle" : fingerprint(r, done, open));
+			}
+			if (!nested.isEmpty()) {
+				nested.sort(null);
+				parts.add(String.format("N:%s\u0000%s", s.getId(), String.join(",", nested)));
+			}
+		}
+		for (Transition<S, E> t : region.getTransitions()) {
+			parts.add(String.format("T:%s\u0000%s\u0000%s", t.getSource().getId(), getEventName(t),
+					t.getTarget().getId()));
+		}
+		// sort for a predictable result
+		parts.sort(null);
+
+		StringBuilder sb = new StringBuilder();
+		for (String part : parts) {
+			sb.append(part).append('\n');
+		}
+		fingerprint = sha1(sb.toString());
+
+		open.remove(region);
+		done.put(region, fingerprint);
+		return fingerprint;
+	}
+
+	/**
+	 * @return the SHA-1 of the UTF-8 bytes of a string as a hex string
+	 */
+	public static String sha1(String value) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-1
+			throw new IllegalStateException(e);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest(value.getBytes(StandardCharsets.UTF_8))) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the state of the region with the id, or the states of the region
+	 *         containing the substate with the id, each with its region the
+	 *         substate is in.
+	 */
+	private static <S> Map<Object, Region<?, ?>> findStates(S id, Region<?, ?> region, Map<S, StateInfo> stateMAP,
+			HierarchyContext hierarchy) {
+		if (stateMAP.containsKey(id)) {
+			return Collections.singletonMap(id, null);
+		}
+		return hierarchy.findOwners(id, region);
+	}
+
+	/**
+	 * @return the regions of an orthogonal state or the submachine of a
+	 *         submachine state, empty for a simple state.
+	 */
+	public static <S, E> List<Region<S, E>> getNestedRegions(State<S, E> state) {
+		List<Region<S, E>> regions = new ArrayList<Region<S, E>>();
+		if (state instanceof AbstractState) {
+			AbstractState<S, E> abstractState = (AbstractState<S, E>) state;
+			if (abstractState.getSubmachine() != null) {
+				regions.add(abstractState.getSubmachine());
+			}
+			if (abstractState.getRegions() != null) {
+				regions.addAll(abstractState.getRegions());
+			}
+		}
+		return regions;
+	}
+
+	/**
+	 * @return the event triggering a transition, empty for triggerless
+	 *         transitions.
+	 */
+	public static <S, E> String getEventName(Transition<S, E> transition) {
+		if (transition.getTrigger() == null || transition.getTrigger().getEvent() == null) {
+			return "";
+		}
+		return transition.getTrigger().getEvent().toString();
+	}
+
 	protected static String generateId(String name, int index) {
 		// making a readable id
 		StringBuffer sb = new StringBuffer(name.length() + 3);
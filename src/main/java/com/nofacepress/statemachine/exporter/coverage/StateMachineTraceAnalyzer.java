@@ -0,0 +1,418 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.exporter.coverage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.region.Region;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.transition.Transition;
+
+import com.nofacepress.statemachine.exporter.base.StateMachineBaseExporter;
+
+/**
+ * Computes the transition coverage of a Spring State Machine from a recorded
+ * trace file.
+ * <p>
+ * Each line of the trace is one state change, with the source state, the event
+ * and the target state in delimited columns, by default
+ * <code>source,event,target</code>. Other columns are ignored so existing log
+ * formats can usually be read as is. Large traces are memory mapped in chunks
+ * that are split on line boundaries and scanned in parallel.
+ */
+public class StateMachineTraceAnalyzer {
+
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+	/// well below the 2 GB a single memory mapping is limited to
+	public static final int MAX_CHUNK_SIZE = 1024 * 1024 * 1024;
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	private final Map<String, Integer> index = new HashMap<String, Integer>();
+	/// the UTF-8 keys of the index in an open addressing table, so the lines can
+	/// be looked up without decoding them
+	private final byte[][] tableKeys;
+	private final int[] tableValues;
+	private byte delimiter = ',';
+	private int sourceColumn = 0;
+	private int eventColumn = 1;
+	private int targetColumn = 2;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * @param machine the Spring StateMachine instance to probe.
+	 * @param         <S> the class for the state machine states
+	 * @param         <E> the class for the state machine events
+	 */
+	public <S, E> StateMachineTraceAnalyzer(StateMachine<S, E> machine) {
+		addToIndex(machine, Collections.newSetFromMap(new IdentityHashMap<Region<?, ?>, Boolean>()));
+
+		int capacity = 16;
+		while (capacity < index.size() * 2) {
+			capacity *= 2;
+		}
+		tableKeys = new byte[capacity][];
+		tableValues = new int[capacity];
+		for (Map.Entry<String, Integer> entry : index.entrySet()) {
+			byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			int slot = hash(key, key.length) & (capacity - 1);
+			while (tableKeys[slot] != null) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			tableKeys[slot] = key;
+			tableValues[slot] = entry.getValue();
+		}
+	}
+
+	/**
+	 * Indexes the transitions of a region and of all its substates by the ids of
+	 * the states they really leave and enter, as recorded in a trace.
+	 */
+	private <S, E> void addToIndex(Region<S, E> region, Set<Region<?, ?>> visited) {
+		if (!visited.add(region)) {
+			return; // a shared submachine
+		}
+		for (Transition<S, E> t : region.getTransitions()) {
+			String key = TransitionCoverage.key(t.getSource().getId().toString(),
+					StateMachineBaseExporter.getEventName(t), t.getTarget().getId().toString());
+			index.putIfAbsent(key, index.size());
+		}
+		for (State<S, E> s : region.getStates()) {
+			for (Region<S, E> nested : StateMachineBaseExporter.getNestedRegions(s)) {
+				addToIndex(nested, visited);
+			}
+		}
+	}
+
+	/**
+	 * @param delimiter the column delimiter, must be an ASCII character.
+	 */
+	public void setDelimiter(char delimiter) {
+		if (delimiter > 0x7f || delimiter == '\n' || delimiter == '\r') {
+			throw new IllegalArgumentException("delimiter must be an ASCII character other than a line break");
+		}
+		this.delimiter = (byte) delimiter;
+	}
+
+	/**
+	 * @param sourceColumn the zero based column of the source state.
+	 * @param eventColumn  the zero based column of the event.
+	 * @param targetColumn the zero based column of the target state.
+	 */
+	public void setColumns(int sourceColumn, int eventColumn, int targetColumn) {
+		if (sourceColumn < 0 || eventColumn < 0 || targetColumn < 0) {
+			throw new IllegalArgumentException("columns must not be negative");
+		}
+		this.sourceColumn = sourceColumn;
+		this.eventColumn = eventColumn;
+		this.targetColumn = targetColumn;
+	}
+
+	/**
+	 * @param chunkSize the approximate number of bytes scanned by one task, at
+	 *                  most {@link #MAX_CHUNK_SIZE}.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize < BLOCK_SIZE || chunkSize > MAX_CHUNK_SIZE) {
+			throw new IllegalArgumentException(
+					"chunkSize must be between " + BLOCK_SIZE + " and " + MAX_CHUNK_SIZE);
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @param parallelism the maximum number of chunks scanned at the same time.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Computes the transition coverage from a trace file.
+	 *
+	 * @param filename the trace file to read.
+	 * @return the coverage
+	 * @throws IOException on file I/O errors
+	 */
+	public TransitionCoverage analyze(String filename) throws IOException {
+		return analyze(Paths.get(filename));
+	}
+
+	/**
+	 * Computes the transition coverage from a trace file.
+	 *
+	 * @param trace the trace file to read.
+	 * @return the coverage
+	 * @throws IOException on file I/O errors
+	 */
+	public TransitionCoverage analyze(Path trace) throws IOException {
+		ChunkResult total = new ChunkResult(index.size());
+
+		try (FileChannel channel = FileChannel.open(trace, StandardOpenOption.READ)) {
+			List<long[]> chunks = split(channel);
+			if (chunks.isEmpty()) {
+				return total.toCoverage(index);
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, chunks.size()));
+			try {
+				List<Future<ChunkResult>> results = new ArrayList<Future<ChunkResult>>(chunks.size());
+				for (long[] chunk : chunks) {
+					results.add(executor.submit(() -> scan(channel, chunk[0], chunk[1])));
+				}
+				for (Future<ChunkResult> result : results) {
+					total.add(result.get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while reading " + trace);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		return total.toCoverage(index);
+	}
+
+	/**
+	 * Splits the file into chunks of about chunkSize bytes that end on a line
+	 * boundary.
+	 */
+	private List<long[]> split(FileChannel channel) throws IOException {
+		List<long[]> chunks = new ArrayList<long[]>();
+		long size = channel.size();
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		long start = 0;
+		while (start < size) {
+			long end = start + chunkSize;
+			if (end >= size) {
+				end = size;
+			} else {
+				// move forward past the next line break
+				boolean found = false;
+				while (!found && end < size) {
+					buffer.clear();
+					int n = channel.read(buffer, end);
+					if (n <= 0) {
+						end = size;
+						break;
+					}
+					for (int i = 0; i < n; i++) {
+						if (buffer.get(i) == '\n') {
+							end += i + 1;
+							found = true;
+							break;
+						}
+					}
+					if (!found) {
+						end += n;
+					}
+				}
+			}
+			if (end - start > Integer.MAX_VALUE) {
+				throw new IOException("line too long to be mapped at offset " + start);
+			}
+			chunks.add(new long[] { start, end });
+			start = end;
+		}
+		return chunks;
+	}
+
+	private ChunkResult scan(FileChannel channel, long start, long end) throws IOException {
+		ChunkResult result = new ChunkResult(index.size());
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+
+		byte[] block = new byte[BLOCK_SIZE];
+		byte[] line = new byte[256];
+		int lineLength = 0;
+		while (buffer.hasRemaining()) {
+			int n = Math.min(block.length, buffer.remaining());
+			buffer.get(block, 0, n);
+			for (int i = 0; i < n; i++) {
+				byte b = block[i];
+				if (b == '\n') {
+					count(line, lineLength, result);
+					lineLength = 0;
+				} else {
+					if (lineLength == line.length) {
+						line = Arrays.copyOf(line, line.length * 2);
+					}
+					line[lineLength++] = b;
+				}
+			}
+		}
+		count(line, lineLength, result);
+		return result;
+	}
+
+	private void count(byte[] line, int length, ChunkResult result) {
+		if (length > 0 && line[length - 1] == '\r') {
+			length--;
+		}
+		if (length == 0) {
+			return;
+		}
+		result.lineCount++;
+
+		// locate the [start, end) of the columns of interest
+		int sourceStart = -1, sourceEnd = -1;
+		int eventStart = -1, eventEnd = -1;
+		int targetStart = -1, targetEnd = -1;
+		int column = 0;
+		int columnStart = 0;
+		for (int i = 0; i <= length; i++) {
+			if (i == length || line[i] == delimiter) {
+				if (column == sourceColumn) {
+					sourceStart = columnStart;
+					sourceEnd = i;
+				}
+				if (column == eventColumn) {
+					eventStart = columnStart;
+					eventEnd = i;
+				}
+				if (column == targetColumn) {
+					targetStart = columnStart;
+					targetEnd = i;
+				}
+				column++;
+				columnStart = i + 1;
+			}
+		}
+		if (sourceStart < 0 || eventStart < 0 || targetStart < 0) {
+			result.unmatchedCount++;
+			return;
+		}
+
+		// build the same key the index uses, trimming each column
+		byte[] key = result.key;
+		int needed = (sourceEnd - sourceStart) + (eventEnd - eventStart) + (targetEnd - targetStart) + 2;
+		if (key.length < needed) {
+			key = result.key = new byte[needed * 2];
+		}
+		int k = append(key, 0, line, sourceStart, sourceEnd);
+		key[k++] = 0;
+		k = append(key, k, line, eventStart, eventEnd);
+		key[k++] = 0;
+		k = append(key, k, line, targetStart, targetEnd);
+
+		int i = lookup(key, k);
+		if (i < 0) {
+			result.unmatchedCount++;
+		} else {
+			result.hits[i]++;
+		}
+	}
+
+	/**
+	 * @return the index of the transition with the given UTF-8 key, -1 if none
+	 */
+	private int lookup(byte[] key, int length) {
+		int mask = tableKeys.length - 1;
+		for (int slot = hash(key, length) & mask; tableKeys[slot] != null; slot = (slot + 1) & mask) {
+			byte[] candidate = tableKeys[slot];
+			if (candidate.length == length && equals(candidate, key, length)) {
+				return tableValues[slot];
+			}
+		}
+		return -1;
+	}
+
+	private static int hash(byte[] key, int length) {
+		int h = 0;
+		for (int i = 0; i < length; i++) {
+			h = 31 * h + key[i];
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equals(byte[] a, byte[] b, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int append(byte[] key, int offset, byte[] line, int start, int end) {
+		while (start < end && isSpace(line[start])) {
+			start++;
+		}
+		while (end > start && isSpace(line[end - 1])) {
+			end--;
+		}
+		System.arraycopy(line, start, key, offset, end - start);
+		return offset + end - start;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private static final class ChunkResult {
+		final long[] hits;
+		long lineCount = 0;
+		long unmatchedCount = 0;
+		byte[] key = new byte[256];
+
+		ChunkResult(int transitions) {
+			hits = new long[transitions];
+		}
+
+		void add(ChunkResult other) {
+			for (int i = 0; i < hits.length; i++) {
+				hits[i] += other.hits[i];
+			}
+			lineCount += other.lineCount;
+			unmatchedCount += other.unmatchedCount;
+		}
+
+		TransitionCoverage toCoverage(Map<String, Integer> index) {
+			return new TransitionCoverage(index, hits, lineCount, unmatchedCount);
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.exporter.coverage;
+
+import java.util.Map;
+
+/**
+ * How often each configured transition of a state machine was exercised in a
+ * recorded trace. Transitions are identified by the names of their source
+ * state, event and target state, as used by the exporters.
+ */
+public class TransitionCoverage {
+
+	private final Map<String, Integer> index;
+	private final long[] hits;
+	private final long lineCount;
+	private final long unmatchedCount;
+
+	TransitionCoverage(Map<String, Integer> index, long[] hits, long lineCount, long unmatchedCount) {
+		this.index = index;
+		this.hits = hits;
+		this.lineCount = lineCount;
+		this.unmatchedCount = unmatchedCount;
+	}
+
+	static String key(String source, String event, String target) {
+		return source + '\u0000' + event + '\u0000' + target;
+	}
+
+	/**
+	 * @param source the name of the source state.
+	 * @param event  the name of the event.
+	 * @param target the name of the target state.
+	 * @return the number of times the transition appears in the trace, 0 if it
+	 *         never does or is not a configured transition.
+	 */
+	public long getHits(String source, String event, String target) {
+		Integer i = index.get(key(source, event, target));
+		return i == null ? 0 : hits[i];
+	}
+
+	/**
+	 * @param source the name of the source state.
+	 * @param event  the name of the event.
+	 * @param target the name of the target state.
+	 * @return true if the transition appears in the trace at least once.
+	 */
+	public boolean isExercised(String source, String event, String target) {
+		return getHits(source, event, target) > 0;
+	}
+
+	/**
+	 * @return the number of configured transitions.
+	 */
+	public int getTransitionCount() {
+		return hits.length;
+	}
+
+	/**
+	 * @return the number of configured transitions that appear in the trace.
+	 */
+	public int getExercisedCount() {
+		int n = 0;
+		for (long h : hits) {
+			if (h > 0) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return the number of non empty lines read from the trace.
+	 */
+	public long getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * @return the number of trace lines that could not be mapped onto a configured
+	 *         transition.
+	 */
+	public long getUnmatchedCount() {
+		return unmatchedCount;
+	}
+
+}
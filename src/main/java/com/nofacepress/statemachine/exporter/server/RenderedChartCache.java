@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.exporter.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.statemachine.StateMachine;
+
+import com.nofacepress.statemachine.exporter.StateMachineChartFormat;
+
+/**
+ * A bounded, least recently used cache of rendered charts. Entries are keyed by
+ * machine id, format and structural fingerprint so a change to the structure of
+ * a machine never serves a stale chart.
+ */
+public class RenderedChartCache {
+
+	/**
+	 * A rendered chart, both plain and gzip compressed.
+	 */
+	public static final class RenderedChart {
+		public final String fingerprint;
+		public final byte[] content;
+		public final byte[] gzipContent;
+
+		RenderedChart(String fingerprint, byte[] content, byte[] gzipContent) {
+			this.fingerprint = fingerprint;
+			this.content = content;
+			this.gzipContent = gzipContent;
+		}
+	}
+
+	private final Map<String, RenderedChart> entries;
+	private final Map<String, FutureTask<RenderedChart>> pending = new HashMap<String, FutureTask<RenderedChart>>();
+
+	/**
+	 * @param maxEntries the maximum number of rendered charts to keep.
+	 */
+	public RenderedChartCache(final int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be at least 1");
+		}
+		this.entries = new LinkedHashMap<String, RenderedChart>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, RenderedChart> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the rendered chart, rendering it only if it is not already cached.
+	 *
+	 * @param machineId   the id the machine is registered under.
+	 * @param machine     the Spring StateMachine instance to probe.
+	 * @param format      the chart format.
+	 * @param fingerprint the structural fingerprint of the machine.
+	 * @return the rendered chart
+	 * @throws IOException on rendering errors
+	 */
+	public RenderedChart get(String machineId, StateMachine<?, ?> machine, StateMachineChartFormat format,
+			String fingerprint) throws IOException {
+		String key = machineId + '\u0000' + format.name() + '\u0000' + fingerprint;
+		FutureTask<RenderedChart> task;
+		boolean owner = false;
+		synchronized (entries) {
+			RenderedChart chart = entries.get(key);
+			if (chart != null) {
+				return chart;
+			}
+			// concurrent requests for the same chart wait for a single render
+			task = pending.get(key);
+			if (task == null) {
+				task = new FutureTask<RenderedChart>(() -> render(machineId, machine, format, fingerprint));
+				pending.put(key, task);
+				owner = true;
+			}
+		}
+
+		// render outside the lock so other charts are served meanwhile
+		RenderedChart chart = null;
+		try {
+			if (owner) {
+				task.run();
+			}
+			chart = task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while rendering " + machineId);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			if (owner) {
+				synchronized (entries) {
+					pending.remove(key);
+					if (chart != null) {
+						entries.put(key, chart);
+					}
+				}
+			}
+		}
+		return chart;
+	}
+
+	/**
+	 * Drops all cached charts.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return the number of cached charts.
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	protected RenderedChart render(String machineId, StateMachine<?, ?> machine, StateMachineChartFormat format,
+			String fingerprint) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+		format.export(machine, machineId, writer);
+		writer.close();
+		byte[] content = bytes.toByteArray();
+
+		ByteArrayOutputStream gzipBytes = new ByteArrayOutputStream(content.length / 4 + 64);
+		GZIPOutputStream gzip = new GZIPOutputStream(gzipBytes);
+		gzip.write(content);
+		gzip.close();
+
+		return new RenderedChart(fingerprint, content, gzipBytes.toByteArray());
+	}
+
+}
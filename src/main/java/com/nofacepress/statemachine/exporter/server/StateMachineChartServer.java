@@ -0,0 +1,269 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.exporter.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.springframework.statemachine.StateMachine;
+
+import com.nofacepress.statemachine.exporter.StateMachineChartFormat;
+import com.nofacepress.statemachine.exporter.base.StateMachineBaseExporter;
+import com.nofacepress.statemachine.exporter.server.RenderedChartCache.RenderedChart;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves charts of registered state machines over HTTP using the JDK built in
+ * server, so the current charts can be fetched from a running service.
+ * <p>
+ * Charts are available at <code>{context}/{machineId}/{format}</code> where
+ * format is one of {@link StateMachineChartFormat}. Rendered charts are cached
+ * and tagged with the structural fingerprint of the machine, so polling with
+ * <code>If-None-Match</code> only costs a fingerprint check.
+ */
+public class StateMachineChartServer {
+
+	public static final String DEFAULT_CONTEXT = "/statemachine";
+	public static final int DEFAULT_CACHE_SIZE = 64;
+	public static final int DEFAULT_THREADS = 4;
+
+	private final HttpServer server;
+	private final String context;
+	private final Map<String, StateMachine<?, ?>> machines = new ConcurrentHashMap<String, StateMachine<?, ?>>();
+	private final RenderedChartCache cache;
+	/// the default executor, shut down with the server
+	private final ExecutorService ownedExecutor;
+
+	/**
+	 * @param address the address to listen on, port 0 picks a free port.
+	 * @throws IOException if the server cannot be bound
+	 */
+	public StateMachineChartServer(InetSocketAddress address) throws IOException {
+		this(address, DEFAULT_CONTEXT, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param address   the address to listen on, port 0 picks a free port.
+	 * @param context   the path prefix to serve charts under.
+	 * @param cacheSize the maximum number of rendered charts to keep.
+	 * @throws IOException if the server cannot be bound
+	 */
+	public StateMachineChartServer(InetSocketAddress address, String context, int cacheSize) throws IOException {
+		this(address, context, cacheSize, null);
+	}
+
+	/**
+	 * @param address   the address to listen on, port 0 picks a free port.
+	 * @param context   the path prefix to serve charts under.
+	 * @param cacheSize the maximum number of rendered charts to keep.
+	 * @param executor  the executor handling the requests, null for a pool of
+	 *                  {@link #DEFAULT_THREADS} threads shut down by
+	 *                  {@link #stop(int)}.
+	 * @throws IOException if the server cannot be bound
+	 */
+	public StateMachineChartServer(InetSocketAddress address, String context, int cacheSize, Executor executor)
+			throws IOException {
+		this(address, context, new RenderedChartCache(cacheSize), executor);
+	}
+
+	/**
+	 * @param address  the address to listen on, port 0 picks a free port.
+	 * @param context  the path prefix to serve charts under.
+	 * @param cache    the cache to render the charts with.
+	 * @param executor the executor handling the requests, null for a pool of
+	 *                 {@link #DEFAULT_THREADS} threads shut down by
+	 *                 {@link #stop(int)}.
+	 * @throws IOException if the server cannot be bound
+	 */
+	public StateMachineChartServer(InetSocketAddress address, String context, RenderedChartCache cache,
+			Executor executor) throws IOException {
+		this.context = context.endsWith("/") ? context.substring(0, context.length() - 1) : context;
+		this.cache = cache;
+		this.server = HttpServer.create(address, 0);
+		this.server.createContext(this.context + "/", new ChartHandler());
+		// the built in server handles requests on its dispatcher thread otherwise
+		this.ownedExecutor = executor == null ? Executors.newFixedThreadPool(DEFAULT_THREADS) : null;
+		this.server.setExecutor(executor == null ? ownedExecutor : executor);
+	}
+
+	/**
+	 * Makes the charts of a state machine available.
+	 *
+	 * @param machineId the id to serve the machine under.
+	 * @param machine   the Spring StateMachine instance to probe.
+	 */
+	public void register(String machineId, StateMachine<?, ?> machine) {
+		machines.put(machineId, machine);
+	}
+
+	/**
+	 * @param machineId the id the machine was registered under.
+	 */
+	public void unregister(String machineId) {
+		machines.remove(machineId);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * @param delaySeconds the maximum time to wait for open requests to finish.
+	 */
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		if (ownedExecutor != null) {
+			ownedExecutor.shutdown();
+		}
+	}
+
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	public RenderedChartCache getCache() {
+		return cache;
+	}
+
+	private class ChartHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				String method = exchange.getRequestMethod();
+				if (!"GET".equals(method) && !"HEAD".equals(method)) {
+					exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+					sendError(exchange, 405, "Method not allowed");
+					return;
+				}
+
+				// {context}/{machineId}/{format}
+				String path = exchange.getRequestURI().getPath().substring(context.length() + 1);
+				int slash = path.lastIndexOf('/');
+				StateMachine<?, ?> machine = slash > 0 ? machines.get(path.substring(0, slash)) : null;
+				StateMachineChartFormat format = slash > 0 ? parseFormat(path.substring(slash + 1)) : null;
+				if (machine == null || format == null) {
+					sendError(exchange, 404, "Not found");
+					return;
+				}
+				String machineId = path.substring(0, slash);
+
+				String fingerprint = StateMachineBaseExporter.fingerprint(machine);
+				boolean gzip = acceptsGzip(exchange.getRequestHeaders());
+				String etag = String.format("\"%s-%s%s\"", fingerprint, format.name(), gzip ? "-gzip" : "");
+
+				Headers headers = exchange.getResponseHeaders();
+				headers.set("ETag", etag);
+				headers.set("Vary", "Accept-Encoding");
+				headers.set("Cache-Control", "no-cache");
+
+				if (matchesEtag(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+					exchange.sendResponseHeaders(304, -1);
+					return;
+				}
+
+				RenderedChart chart = cache.get(machineId, machine, format, fingerprint);
+				byte[] body = gzip ? chart.gzipContent : chart.content;
+				headers.set("Content-Type", format.getContentType());
+				if (gzip) {
+					headers.set("Content-Encoding", "gzip");
+				}
+				if ("HEAD".equals(method)) {
+					headers.set("Content-Length", Integer.toString(body.length));
+					exchange.sendResponseHeaders(200, -1);
+					return;
+				}
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			} catch (IOException | RuntimeException e) {
+				if (exchange.getResponseCode() != -1) {
+					throw e; // the response is already under way
+				}
+				// e.g. a machine without an initial state or an XML error, answer instead of
+				// dropping the connection
+				exchange.getResponseHeaders().clear();
+				sendError(exchange, 500, "Cannot render the chart");
+			} finally {
+				exchange.close();
+			}
+		}
+
+	}
+
+	private static StateMachineChartFormat parseFormat(String name) {
+		for (StateMachineChartFormat format : StateMachineChartFormat.values()) {
+			if (format.name().equals(name)) {
+				return format;
+			}
+		}
+		return null;
+	}
+
+	private static boolean acceptsGzip(Headers requestHeaders) {
+		for (String value : requestHeaders.getOrDefault("Accept-Encoding", Collections.emptyList())) {
+			for (String coding : value.split(",")) {
+				String[] parts = coding.trim().split(";");
+				if (parts[0].trim().equalsIgnoreCase("gzip")) {
+					return parts.length < 2 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean matchesEtag(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals("*") || candidate.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] body = message.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		if ("HEAD".equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+}
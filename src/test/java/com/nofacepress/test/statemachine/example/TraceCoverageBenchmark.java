@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine.example;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineBuilder;
+import org.springframework.statemachine.config.StateMachineBuilder.Builder;
+import org.springframework.statemachine.transition.Transition;
+
+import com.nofacepress.statemachine.exporter.StateMachineExportOptions;
+import com.nofacepress.statemachine.exporter.StateMachinePlantUMLExporter;
+import com.nofacepress.statemachine.exporter.coverage.StateMachineTraceAnalyzer;
+import com.nofacepress.statemachine.exporter.coverage.TransitionCoverage;
+
+/**
+ * Generates a large trace for the example state machine, measures how fast the
+ * coverage is computed from it and saves the coverage chart.
+ * <p>
+ * Usage: <code>TraceCoverageBenchmark [megabytes]</code>, default is 1024.
+ */
+public class TraceCoverageBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+
+		Builder<MyStates, MyEvents> builder = StateMachineBuilder.builder();
+		MyStateMachineConfiguration config = new MyStateMachineConfiguration();
+		config.configure(builder.configureStates());
+		config.configure(builder.configureTransitions());
+		StateMachine<MyStates, MyEvents> machine = builder.build();
+
+		// every transition but D -> A is exercised, plus a few unknown lines
+		List<String> lines = new ArrayList<String>();
+		for (Transition<MyStates, MyEvents> t : machine.getTransitions()) {
+			if (t.getSource().getId() != MyStates.STATE_D || t.getTrigger().getEvent() != MyEvents.EVENT_4) {
+				lines.add(String.format("%s,%s,%s\n", t.getSource().getId(), t.getTrigger().getEvent(),
+						t.getTarget().getId()));
+			}
+		}
+		lines.add("STATE_C,EVENT_1,STATE_A\n");
+
+		File trace = File.createTempFile("statemachine-trace", ".csv");
+		trace.deleteOnExit();
+		long targetSize = megabytes * 1024 * 1024;
+		long size = 0;
+		Random random = new Random(42);
+		long start = System.nanoTime();
+		try (Writer writer = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(trace), StandardCharsets.UTF_8), 1 << 20)) {
+			while (size < targetSize) {
+				String line = lines.get(random.nextInt(lines.size()));
+				writer.write(line);
+				size += line.length();
+			}
+		}
+		System.out.printf("Generated %d MB trace in %d ms%n", size >> 20, (System.nanoTime() - start) / 1000000);
+
+		StateMachineTraceAnalyzer analyzer = new StateMachineTraceAnalyzer(machine);
+		TransitionCoverage coverage = null;
+		for (int run = 1; run <= 3; run++) {
+			start = System.nanoTime();
+			coverage = analyzer.analyze(trace.getPath());
+			long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+			System.out.printf("Run %d: %d lines in %d ms, %d MB/s%n", run, coverage.getLineCount(), millis,
+					(size >> 20) * 1000 / millis);
+		}
+		System.out.printf("%d of %d transitions exercised, %d unmatched lines%n", coverage.getExercisedCount(),
+				coverage.getTransitionCount(), coverage.getUnmatchedCount());
+
+		String filename = "statemachine-coverage.plantuml";
+		StateMachinePlantUMLExporter.export(machine, filename,
+				new StateMachineExportOptions().setTitle("Transition Coverage").setCoverage(coverage));
+		System.out.println("Saved coverage chart to " + filename);
+
+		trace.delete();
+	}
+}
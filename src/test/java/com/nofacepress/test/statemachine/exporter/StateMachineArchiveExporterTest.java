@@ -0,0 +1,190 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.statemachine.StateMachine;
+
+import com.nofacepress.statemachine.exporter.StateMachineArchiveExporter;
+import com.nofacepress.statemachine.exporter.StateMachineChartFormat;
+import com.nofacepress.statemachine.exporter.base.StateMachineBaseExporter;
+
+public class StateMachineArchiveExporterTest {
+
+	private File archive;
+	private final Map<String, StateMachine<?, ?>> machines = new LinkedHashMap<String, StateMachine<?, ?>>();
+
+	@Before
+	public void createMachines() throws IOException {
+		archive = File.createTempFile("statemachines", ".zip");
+		machines.put("orders", TestStateMachines.example());
+		machines.put("../../escape", TestStateMachines.hierarchy());
+		machines.put("billing", TestStateMachines.hierarchy());
+	}
+
+	@After
+	public void deleteArchive() {
+		archive.delete();
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			content.write(buffer, 0, n);
+		}
+		return content.toByteArray();
+	}
+
+	private static String render(StateMachine<?, ?> machine, String id, StateMachineChartFormat format)
+			throws IOException {
+		StringWriter writer = new StringWriter();
+		format.export(machine, id, writer);
+		return writer.toString();
+	}
+
+	@Test
+	public void writesTheManifestFirstAndOneEntryPerChart() throws IOException {
+		List<StateMachineChartFormat> formats = Arrays.asList(StateMachineChartFormat.json,
+				StateMachineChartFormat.plantuml, StateMachineChartFormat.json);
+		StateMachineArchiveExporter.export(machines, formats, archive.getPath());
+
+		List<String> names = new ArrayList<String>();
+		String manifest = null;
+		try (ZipInputStream zip = new ZipInputStream(new FileInputStream(archive), StandardCharsets.UTF_8)) {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				names.add(entry.getName());
+				if (entry.getName().equals(StateMachineArchiveExporter.MANIFEST_NAME)) {
+					manifest = new String(read(zip), StandardCharsets.UTF_8);
+				}
+			}
+		}
+
+		// sorted by id, formats once each in their declared order
+		List<String> ids = Arrays.asList("../../escape", "billing", "orders");
+		List<String> expected = new ArrayList<String>();
+		expected.add(StateMachineArchiveExporter.MANIFEST_NAME);
+		for (String id : ids) {
+			expected.add(StateMachineArchiveExporter.getEntryName(id, StateMachineChartFormat.plantuml));
+			expected.add(StateMachineArchiveExporter.getEntryName(id, StateMachineChartFormat.json));
+		}
+		assertEquals(expected, names);
+		for (String name : names.subList(1, names.size())) {
+			assertTrue(name, name.startsWith(StateMachineArchiveExporter.CHARTS_FOLDER));
+			assertFalse(name, name.substring(StateMachineArchiveExporter.CHARTS_FOLDER.length()).contains("/"));
+			assertFalse(name, name.contains(".."));
+		}
+
+		String[] rows = manifest.trim().split("\r?\n");
+		assertEquals(1 + ids.size() * 2, rows.length);
+		assertEquals("Machine,Format,Entry,Fingerprint", rows[0]);
+		int row = 1;
+		for (String id : ids) {
+			String fingerprint = StateMachineBaseExporter.fingerprint(machines.get(id));
+			for (StateMachineChartFormat format : Arrays.asList(StateMachineChartFormat.plantuml,
+					StateMachineChartFormat.json)) {
+				assertEquals(String.join(",", id, format.name(),
+						StateMachineArchiveExporter.getEntryName(id, format), fingerprint), rows[row++]);
+			}
+		}
+		assertEquals(StateMachineBaseExporter.fingerprint(machines.get("billing")),
+				StateMachineBaseExporter.fingerprint(machines.get("../../escape")));
+	}
+
+	@Test
+	public void readsChartsBack() throws IOException {
+		StateMachineArchiveExporter.export(machines, archive.getPath());
+
+		for (StateMachineChartFormat format : StateMachineChartFormat.values()) {
+			assertEquals(render(machines.get("orders"), "orders", format),
+					StateMachineArchiveExporter.read(archive.getPath(), "orders", format));
+			assertEquals(render(machines.get("../../escape"), "../../escape", format),
+					StateMachineArchiveExporter.read(archive.getPath(), "../../escape", format));
+		}
+		assertNull(StateMachineArchiveExporter.read(archive.getPath(), "unknown", StateMachineChartFormat.json));
+	}
+
+	@Test
+	public void readsMissingFormatsAsNull() throws IOException {
+		StateMachineArchiveExporter.export(machines, Arrays.asList(StateMachineChartFormat.scxml),
+				archive.getPath());
+
+		assertEquals(render(machines.get("billing"), "billing", StateMachineChartFormat.scxml),
+				StateMachineArchiveExporter.read(archive.getPath(), "billing", StateMachineChartFormat.scxml));
+		assertNull(StateMachineArchiveExporter.read(archive.getPath(), "billing", StateMachineChartFormat.json));
+	}
+
+	@Test
+	public void keepsChangedIdsApart() {
+		String plain = StateMachineArchiveExporter.getEntryName("a_b", StateMachineChartFormat.json);
+		assertEquals("charts/a_b.json", plain);
+		assertNotEquals(plain, StateMachineArchiveExporter.getEntryName("a/b", StateMachineChartFormat.json));
+		assertNotEquals(StateMachineArchiveExporter.getEntryName("a/b", StateMachineChartFormat.json),
+				StateMachineArchiveExporter.getEntryName("a\\b", StateMachineChartFormat.json));
+		assertTrue(StateMachineArchiveExporter.getEntryName("", StateMachineChartFormat.json).length() > 13);
+		assertEquals("charts/a_b_" + StateMachineBaseExporter.sha1("a/b").substring(0, 8) + ".json",
+				StateMachineArchiveExporter.getEntryName("a/b", StateMachineChartFormat.json));
+		assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", StateMachineBaseExporter.sha1("abc"));
+	}
+
+	@Test
+	public void leavesTheOutputOpen() throws IOException {
+		boolean[] closed = new boolean[1];
+		ByteArrayOutputStream output = new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		StateMachineArchiveExporter.export(machines, Arrays.asList(StateMachineChartFormat.lucid), output);
+
+		assertFalse(closed[0]);
+		int entries = 0;
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+			while (zip.getNextEntry() != null) {
+				entries++;
+			}
+		}
+		assertEquals(1 + machines.size(), entries);
+	}
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.statemachine.StateMachine;
+
+import com.nofacepress.statemachine.exporter.StateMachineChartFormat;
+import com.nofacepress.statemachine.exporter.base.StateMachineBaseExporter;
+import com.nofacepress.statemachine.exporter.server.RenderedChartCache;
+import com.nofacepress.statemachine.exporter.server.RenderedChartCache.RenderedChart;
+import com.nofacepress.statemachine.exporter.server.StateMachineChartServer;
+
+public class StateMachineChartServerTest {
+
+	private StateMachineChartServer server;
+	private String base;
+
+	@Before
+	public void startServer() throws IOException {
+		RenderedChartCache cache = new RenderedChartCache(StateMachineChartServer.DEFAULT_CACHE_SIZE) {
+			@Override
+			protected RenderedChart render(String machineId, StateMachine<?, ?> machine,
+					StateMachineChartFormat format, String fingerprint) throws IOException {
+				switch (machineId) {
+				case "broken":
+					throw new IllegalStateException("no initial state");
+				case "unwritable":
+					throw new IOException("XML error");
+				default:
+					return super.render(machineId, machine, format, fingerprint);
+				}
+			}
+		};
+		server = new StateMachineChartServer(new InetSocketAddress("127.0.0.1", 0),
+				StateMachineChartServer.DEFAULT_CONTEXT, cache, null);
+		server.register("example", TestStateMachines.example());
+		server.register("broken", TestStateMachines.example());
+		server.register("unwritable", TestStateMachines.example());
+		server.start();
+		base = String.format("http://127.0.0.1:%d%s/", server.getAddress().getPort(),
+				StateMachineChartServer.DEFAULT_CONTEXT);
+	}
+
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+
+	private HttpURLConnection open(String path) throws IOException {
+		return (HttpURLConnection) new URL(base + path).openConnection();
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			content.write(buffer, 0, n);
+		}
+		in.close();
+		return content.toByteArray();
+	}
+
+	@Test
+	public void servesChartWithEtag() throws IOException {
+		HttpURLConnection connection = open("example/plantuml");
+
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("text/plain; charset=utf-8", connection.getContentType());
+		assertNotNull(connection.getHeaderField("ETag"));
+		assertNull(connection.getHeaderField("Content-Encoding"));
+		String body = new String(read(connection.getInputStream()), StandardCharsets.UTF_8);
+		assertTrue(body.startsWith("@startuml"));
+	}
+
+	@Test
+	public void answersHeadWithoutBody() throws IOException {
+		byte[] expected = read(open("example/plantuml").getInputStream());
+
+		HttpURLConnection connection = open("example/plantuml");
+		connection.setRequestMethod("HEAD");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("text/plain; charset=utf-8", connection.getContentType());
+		assertEquals(expected.length, connection.getContentLength());
+		assertNotNull(connection.getHeaderField("ETag"));
+		assertEquals(0, read(connection.getInputStream()).length);
+	}
+
+	@Test
+	public void answersNotModifiedForMatchingEtag() throws IOException {
+		HttpURLConnection connection = open("example/scxml");
+		assertEquals(200, connection.getResponseCode());
+		String etag = connection.getHeaderField("ETag");
+
+		connection = open("example/scxml");
+		connection.setRequestProperty("If-None-Match", etag);
+		assertEquals(304, connection.getResponseCode());
+		assertEquals(etag, connection.getHeaderField("ETag"));
+
+		connection = open("example/scxml");
+		connection.setRequestProperty("If-None-Match", "\"something-else\"");
+		assertEquals(200, connection.getResponseCode());
+	}
+
+	@Test
+	public void compressesWhenGzipIsAccepted() throws IOException {
+		HttpURLConnection plain = open("example/json");
+		byte[] expected = read(plain.getInputStream());
+
+		HttpURLConnection connection = open("example/json");
+		connection.setRequestProperty("Accept-Encoding", "deflate, gzip");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+		assertTrue(connection.getHeaderField("ETag").endsWith("-gzip\""));
+		byte[] body = read(new GZIPInputStream(connection.getInputStream()));
+		assertEquals(new String(expected, StandardCharsets.UTF_8), new String(body, StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void doesNotCompressWhenGzipIsRefused() throws IOException {
+		HttpURLConnection connection = open("example/json");
+		connection.setRequestProperty("Accept-Encoding", "gzip;q=0");
+		assertEquals(200, connection.getResponseCode());
+		assertNull(connection.getHeaderField("Content-Encoding"));
+		assertTrue(new String(read(connection.getInputStream()), StandardCharsets.UTF_8).startsWith("{"));
+	}
+
+	@Test
+	public void answersNotFound() throws IOException {
+		assertEquals(404, open("unknown/plantuml").getResponseCode());
+		assertEquals(404, open("example/unknown").getResponseCode());
+		assertEquals(404, open("example").getResponseCode());
+	}
+
+	@Test
+	public void answersMethodNotAllowed() throws IOException {
+		HttpURLConnection connection = open("example/plantuml");
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.getOutputStream().close();
+		assertEquals(405, connection.getResponseCode());
+		assertEquals("GET, HEAD", connection.getHeaderField("Allow"));
+	}
+
+	@Test
+	public void answersServerErrorWhenRenderingFails() throws IOException {
+		HttpURLConnection connection = open("broken/json");
+		assertEquals(500, connection.getResponseCode());
+		assertNull(connection.getHeaderField("ETag"));
+
+		connection = open("unwritable/scxml");
+		assertEquals(500, connection.getResponseCode());
+		assertNull(connection.getHeaderField("ETag"));
+
+		connection = open("unwritable/scxml");
+		connection.setRequestMethod("HEAD");
+		assertEquals(500, connection.getResponseCode());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedCharts() throws IOException {
+		StateMachine<?, ?> machine = TestStateMachines.example();
+		String fingerprint = StateMachineBaseExporter.fingerprint(machine);
+		int[] renders = new int[1];
+		RenderedChartCache cache = new RenderedChartCache(2) {
+			@Override
+			protected RenderedChart render(String machineId, StateMachine<?, ?> machine,
+					StateMachineChartFormat format, String fingerprint) throws IOException {
+				renders[0]++;
+				return super.render(machineId, machine, format, fingerprint);
+			}
+		};
+
+		RenderedChart a = cache.get("a", machine, StateMachineChartFormat.plantuml, fingerprint);
+		cache.get("b", machine, StateMachineChartFormat.plantuml, fingerprint);
+		assertSame(a, cache.get("a", machine, StateMachineChartFormat.plantuml, fingerprint));
+		assertEquals(2, renders[0]);
+
+		// b is the least recently used
+		cache.get("c", machine, StateMachineChartFormat.plantuml, fingerprint);
+		assertEquals(2, cache.size());
+		assertSame(a, cache.get("a", machine, StateMachineChartFormat.plantuml, fingerprint));
+		assertEquals(3, renders[0]);
+		cache.get("b", machine, StateMachineChartFormat.plantuml, fingerprint);
+		assertEquals(4, renders[0]);
+
+		// a new fingerprint is a new entry
+		cache.get("a", machine, StateMachineChartFormat.plantuml, "changed");
+		assertEquals(5, renders[0]);
+	}
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.springframework.statemachine.StateMachine;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.nofacepress.statemachine.exporter.StateMachineChartFormat;
+import com.nofacepress.statemachine.exporter.StateMachineExportOptions;
+import com.nofacepress.statemachine.exporter.StateMachineLucidChartExporter;
+import com.nofacepress.statemachine.exporter.StateMachinePlantUMLExporter;
+import com.nofacepress.statemachine.exporter.StateMachineSCXMLExporter;
+import com.nofacepress.statemachine.exporter.coverage.StateMachineTraceAnalyzer;
+import com.nofacepress.statemachine.exporter.coverage.TransitionCoverage;
+
+public class StateMachineHierarchyExportTest {
+
+	/// the output of the exporters before regions and submachines were supported
+	private static final String FLAT_PLANTUML = "@startuml\n" //
+			+ "skinparam monochrome true\n" //
+			+ "title Example\n" //
+			+ "state \"STATE_A\\n[<i>initial</i>]\" as STATE_A_1 <<initial>>\n" //
+			+ "state \"STATE_B\" as STATE_B_2\n" //
+			+ "state \"STATE_D\" as STATE_D_3\n" //
+			+ "state \"STATE_C\\n[<i>done</i>]\" as STATE_C_4 <<done>>\n" //
+			+ "state \"STATE_E\" as STATE_E_5\n" //
+			+ "state \"STATE_F\\n[<i>orphan</i>]\" as STATE_F_6 <<orphan>>\n" //
+			+ "[*] -right-> STATE_A_1\n" //
+			+ "STATE_A_1 -down-> STATE_B_2 : EVENT_1\n" //
+			+ "STATE_B_2 -down-> STATE_D_3 : RETRY\n" //
+			+ "STATE_B_2 -right-> STATE_C_4 : EVENT_2\n" //
+			+ "STATE_B_2 -left-> STATE_E_5 : EVENT_3\n" //
+			+ "STATE_D_3 -up-> STATE_A_1 : EVENT_4\n" //
+			+ "STATE_D_3 -left-> STATE_B_2 : EVENT_1\n" //
+			+ "STATE_D_3 -down-> STATE_E_5 : EVENT_3\n" //
+			+ "STATE_C_4 -down-> [*]\n" //
+			+ "STATE_E_5 -down-> STATE_E_5 : RETRY\n" //
+			+ "@enduml\n";
+
+	private static final String FLAT_SCXML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" //
+			+ "<scxml xmlns=\"http://www.w3.org/2005/07/scxml\" version=\"1.0\" initial=\"STATE_A\">\n" //
+			+ "  <state id=\"STATE_A\">\n" //
+			+ "    <transition event=\"EVENT_1\" target=\"STATE_B\"></transition></state>\n" //
+			+ "  <state id=\"STATE_B\">\n" //
+			+ "    <transition event=\"RETRY\" target=\"STATE_D\"></transition>\n" //
+			+ "    <transition event=\"EVENT_2\" target=\"STATE_C\"></transition>\n" //
+			+ "    <transition event=\"EVENT_3\" target=\"STATE_E\"></transition></state>\n" //
+			+ "  <state id=\"STATE_D\">\n" //
+			+ "    <transition event=\"EVENT_4\" target=\"STATE_A\"></transition>\n" //
+			+ "    <transition event=\"EVENT_1\" target=\"STATE_B\"></transition>\n" //
+			+ "    <transition event=\"EVENT_3\" target=\"STATE_E\"></transition></state>\n" //
+			+ "  <state id=\"STATE_C\"></state>\n" //
+			+ "  <state id=\"STATE_E\">\n" //
+			+ "    <transition event=\"RETRY\" target=\"STATE_E\"></transition></state>\n" //
+			+ "  <state id=\"STATE_F\"></state></scxml>\n";
+
+	private static String export(StateMachineChartFormat format, StateMachine<?, ?> machine,
+			StateMachineExportOptions options) throws IOException {
+		StringWriter writer = new StringWriter();
+		format.export(machine, writer, options);
+		return writer.toString();
+	}
+
+	private static List<String> findAll(String regex, String text) {
+		List<String> found = new ArrayList<String>();
+		Matcher matcher = Pattern.compile(regex).matcher(text);
+		while (matcher.find()) {
+			found.add(matcher.group(1));
+		}
+		return found;
+	}
+
+	/**
+	 * @return true if the PlantUML chart has the arrow, in any direction
+	 */
+	private static boolean hasArrow(String chart, String source, String style, String target, String label) {
+		String regex = String.format("(?m)^ *%s -%s[a-z]+-> %s : %s$", Pattern.quote(source), Pattern.quote(style),
+				Pattern.quote(target), Pattern.quote(label));
+		return Pattern.compile(regex).matcher(chart).find();
+	}
+
+	private static int count(String text, String part) {
+		return text.split(Pattern.quote(part), -1).length - 1;
+	}
+
+	@Test
+	public void exportsFlatMachinesAsBefore() throws Exception {
+		StringWriter writer = new StringWriter();
+		StateMachinePlantUMLExporter.export(TestStateMachines.example(), "Example", writer);
+		assertEquals(FLAT_PLANTUML, writer.toString());
+
+		writer = new StringWriter();
+		StateMachineSCXMLExporter.export(TestStateMachines.example(), writer);
+		assertEquals(FLAT_SCXML, writer.toString());
+
+		writer = new StringWriter();
+		StateMachineLucidChartExporter.export(TestStateMachines.example(), "Example", writer);
+		String lucid = writer.toString();
+		assertTrue(lucid, lucid.startsWith("Id,Name,Shape Library,Page ID,Contained By,Line Source,"));
+		assertEquals(6, count(lucid, ",State Name,UML,1,,"));
+		assertEquals(8, count(lucid, ",Line,,1,,"));
+	}
+
+	@Test
+	public void exportsSubstatesInPlantUML() throws IOException {
+		String chart = export(StateMachineChartFormat.plantuml, TestStateMachines.hierarchy(),
+				new StateMachineExportOptions());
+
+		assertTrue(chart, chart.contains("state \"B\" as B_2 {\n"));
+		assertTrue(chart, chart.contains("state \"C\" as C_3 {\n"));
+		assertTrue(chart, chart.contains("  --\n"));
+		// the transitions between substates are kept by Spring on the top level
+		assertTrue(chart, hasArrow(chart, "B_2__B1_1", "", "B_2__B2_2", "in"));
+		assertTrue(chart, hasArrow(chart, "B_2__B2_2__B21_1", "", "B_2__B2_2__B22_2", "inner"));
+		assertTrue(chart, chart.contains("B_2__B2_2__B22_2 -up-> B_2__B2_2__B21_1\n"));
+		assertTrue(chart, hasArrow(chart, "C_3__P1_1", "", "C_3__P2_2", "p"));
+		assertTrue(chart, hasArrow(chart, "C_3__Q1_1", "", "C_3__Q2_2", "q"));
+		// the shared submachine keeps its own transitions
+		assertTrue(chart, hasArrow(chart, "E_4__X_1", "", "E_4__Y_2", "xy"));
+		assertTrue(chart, hasArrow(chart, "F_6__X_1", "", "F_6__Y_2", "xy"));
+		// entering and leaving a substate is drawn on the composite state
+		assertTrue(chart, hasArrow(chart, "A_1", "", "B_2", "deep"));
+		assertTrue(chart, hasArrow(chart, "B_2", "", "D_5", "out"));
+		assertFalse(chart, chart.contains("<<orphan>>"));
+
+		List<String> aliases = findAll(" as (\\S+)", chart);
+		assertEquals(18, aliases.size());
+		assertEquals(aliases.size(), new HashSet<String>(aliases).size());
+	}
+
+	@Test
+	public void exportsTheSameChartForEachBuild() throws IOException {
+		StateMachineExportOptions options = new StateMachineExportOptions();
+		for (StateMachineChartFormat format : StateMachineChartFormat.values()) {
+			assertEquals(export(format, TestStateMachines.hierarchy(), options),
+					export(format, TestStateMachines.hierarchy(), options));
+		}
+	}
+
+	@Test
+	public void exportsSubstatesInSCXMLWithUniqueIds() throws Exception {
+		String chart = export(StateMachineChartFormat.scxml, TestStateMachines.hierarchy(),
+				new StateMachineExportOptions());
+
+		Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+				.parse(new ByteArrayInputStream(chart.getBytes(StandardCharsets.UTF_8)));
+		Set<String> ids = new HashSet<String>();
+		List<String> references = new ArrayList<String>();
+		for (String tag : new String[] { "state", "parallel" }) {
+			NodeList elements = document.getElementsByTagName(tag);
+			for (int i = 0; i < elements.getLength(); i++) {
+				Element element = (Element) elements.item(i);
+				assertTrue("duplicate id " + element.getAttribute("id"), ids.add(element.getAttribute("id")));
+				if (element.hasAttribute("initial")) {
+					references.add(element.getAttribute("initial"));
+				}
+			}
+		}
+		NodeList transitions = document.getElementsByTagName("transition");
+		for (int i = 0; i < transitions.getLength(); i++) {
+			references.add(((Element) transitions.item(i)).getAttribute("target"));
+		}
+		references.add(document.getDocumentElement().getAttribute("initial"));
+		for (String reference : references) {
+			assertTrue("unknown state " + reference, ids.contains(reference));
+		}
+
+		assertEquals(1, document.getElementsByTagName("parallel").getLength());
+		assertEquals("C", ((Element) document.getElementsByTagName("parallel").item(0)).getAttribute("id"));
+		assertTrue(ids.contains("B__B2__B22"));
+		assertTrue(ids.contains("C_region_1__P1"));
+		assertTrue(ids.contains("C_region_2__Q1"));
+		assertTrue(ids.contains("E__X"));
+		assertTrue(ids.contains("F__X"));
+		assertTrue(chart, chart.contains("<state id=\"B__B1\">\n      <transition event=\"in\" target=\"B__B2\">"));
+		assertTrue(chart, chart.contains(
+				"<state id=\"B__B2__B21\">\n        <transition event=\"inner\" target=\"B__B2__B22\">"));
+		assertTrue(chart, chart.contains(
+				"<state id=\"C_region_2__Q1\">\n        <transition event=\"q\" target=\"C_region_2__Q2\">"));
+	}
+
+	@Test
+	public void exportsSubstatesInJSONWithUniqueIds() throws IOException {
+		String chart = export(StateMachineChartFormat.json, TestStateMachines.hierarchy(),
+				new StateMachineExportOptions());
+
+		List<String> ids = findAll("\"id\": \"([^\"]*)\"", chart);
+		assertEquals(18, ids.size());
+		assertEquals(ids.size(), new HashSet<String>(ids).size());
+		List<String> targets = findAll("\"target\": \"([^\"]*)\"", chart);
+		for (String target : targets) {
+			assertTrue("unknown state " + target, ids.contains(target));
+		}
+		assertTrue(targets.containsAll(Arrays.asList("B_2__B2_2", "B_2__B2_2__B22_2", "B_2__B2_2__B21_1",
+				"C_3__P2_2", "C_3__Q2_2", "E_4__Y_2", "F_6__Y_2")));
+		assertEquals(Arrays.asList("A_1"), findAll("\"initial\": \"([^\"]*)\"", chart));
+	}
+
+	@Test
+	public void exportsSubstatesInLucidChart() throws IOException {
+		String chart = export(StateMachineChartFormat.lucid, TestStateMachines.hierarchy(),
+				new StateMachineExportOptions().setTitle("Hierarchy"));
+
+		// the 6 top states, 2 in B (3), 4 in C (4), 2 in E (5), 2 in F (7) and 2 in B2 (9)
+		assertEquals(6, count(chart, ",State Name,UML,1,,"));
+		assertEquals(2, count(chart, ",State Name,UML,1,3,"));
+		assertEquals(4, count(chart, ",State Name,UML,1,4,"));
+		assertEquals(2, count(chart, ",State Name,UML,1,5,"));
+		assertEquals(2, count(chart, ",State Name,UML,1,7,"));
+		assertEquals(2, count(chart, ",State Name,UML,1,9,"));
+		// B1 -in-> B2 and B21 -inner-> B22
+		assertTrue(chart, chart.contains(",Line,,1,,8,9,None,Arrow,in,,"));
+		assertTrue(chart, chart.contains(",Line,,1,,18,19,None,Arrow,inner,,"));
+		assertEquals(13, count(chart, ",Line,,1,,"));
+	}
+
+	@Test
+	public void limitsTheDepth() throws IOException {
+		StateMachineExportOptions options = new StateMachineExportOptions().setMaxDepth(0);
+		String chart = export(StateMachineChartFormat.plantuml, TestStateMachines.hierarchy(), options);
+		assertFalse(chart, chart.contains("{"));
+		assertTrue(chart, hasArrow(chart, "B_2", "", "D_5", "out"));
+
+		chart = export(StateMachineChartFormat.json, TestStateMachines.hierarchy(), options);
+		assertFalse(chart, chart.contains("\"regions\""));
+
+		options.setMaxDepth(1);
+		chart = export(StateMachineChartFormat.plantuml, TestStateMachines.hierarchy(), options);
+		assertTrue(chart, hasArrow(chart, "B_2__B1_1", "", "B_2__B2_2", "in"));
+		assertFalse(chart, chart.contains("B21"));
+	}
+
+	@Test
+	public void showsTheCoverageOfTransitionsBetweenSubstates() throws IOException {
+		File trace = File.createTempFile("statemachine-trace", ".csv");
+		try {
+			try (OutputStream out = new FileOutputStream(trace)) {
+				out.write("A,deep,B2\nB1,in,B2\nB2,out,D\nB2,out,D\nB21,inner,B22\n"
+						.getBytes(StandardCharsets.UTF_8));
+			}
+			StateMachine<String, String> machine = TestStateMachines.hierarchy();
+			TransitionCoverage coverage = new StateMachineTraceAnalyzer(machine).analyze(trace.getPath());
+			assertEquals(0, coverage.getUnmatchedCount());
+
+			StateMachineExportOptions options = new StateMachineExportOptions().setCoverage(coverage);
+			String chart = export(StateMachineChartFormat.plantuml, machine, options);
+			assertTrue(chart, hasArrow(chart, "A_1", "[bold]", "B_2", "deep (1)"));
+			assertTrue(chart, hasArrow(chart, "B_2", "[bold]", "D_5", "out (2)"));
+			assertTrue(chart, hasArrow(chart, "B_2__B1_1", "[bold]", "B_2__B2_2", "in (1)"));
+			assertTrue(chart, hasArrow(chart, "B_2__B2_2__B21_1", "[bold]", "B_2__B2_2__B22_2", "inner (1)"));
+			assertTrue(chart, hasArrow(chart, "A_1", "[#gray,dashed]", "B_2", "go"));
+			assertTrue(chart, hasArrow(chart, "C_3__P1_1", "[#gray,dashed]", "C_3__P2_2", "p"));
+
+			chart = export(StateMachineChartFormat.scxml, machine, options);
+			assertTrue(chart, chart.contains("<transition event=\"out\" target=\"D\" coverage:hits=\"2\">"));
+			assertTrue(chart, chart.contains("<transition event=\"in\" target=\"B__B2\" coverage:hits=\"1\">"));
+		} finally {
+			trace.delete();
+		}
+	}
+
+}
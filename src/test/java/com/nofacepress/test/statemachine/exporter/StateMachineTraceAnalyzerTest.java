@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nofacepress.statemachine.exporter.coverage.StateMachineTraceAnalyzer;
+import com.nofacepress.statemachine.exporter.coverage.TransitionCoverage;
+
+public class StateMachineTraceAnalyzerTest {
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	private File trace;
+
+	@Before
+	public void createTrace() throws IOException {
+		trace = File.createTempFile("statemachine-trace", ".csv");
+	}
+
+	@After
+	public void deleteTrace() {
+		trace.delete();
+	}
+
+	private void writeTrace(String content) throws IOException {
+		try (OutputStream out = new FileOutputStream(trace)) {
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	public void countsLinesSplitAcrossChunks() throws IOException {
+		// lines of different lengths so chunk boundaries fall inside lines
+		String[] lines = { "STATE_A,EVENT_1,STATE_B\n", "STATE_B , EVENT_2 , STATE_C\r\n",
+				"STATE_D,EVENT_4,STATE_A,with,some,extra,columns\n", "not a transition\n", "\n",
+				"STATE_E,RETRY,STATE_E\r\n" };
+		long[] expected = new long[lines.length];
+		StringBuilder sb = new StringBuilder();
+		int i = 0;
+		while (sb.length() < 5 * BLOCK_SIZE) {
+			int k = (i * 7 + i / 3) % lines.length;
+			sb.append(lines[k]);
+			expected[k]++;
+			i++;
+		}
+		// the last line has no line break
+		sb.append("STATE_A,EVENT_1,STATE_B");
+		expected[0]++;
+		writeTrace(sb.toString());
+
+		StateMachineTraceAnalyzer analyzer = new StateMachineTraceAnalyzer(TestStateMachines.example());
+		analyzer.setChunkSize(BLOCK_SIZE);
+		analyzer.setParallelism(3);
+		TransitionCoverage coverage = analyzer.analyze(trace.getPath());
+
+		assertEquals(expected[0], coverage.getHits("STATE_A", "EVENT_1", "STATE_B"));
+		assertEquals(expected[1], coverage.getHits("STATE_B", "EVENT_2", "STATE_C"));
+		assertEquals(expected[2], coverage.getHits("STATE_D", "EVENT_4", "STATE_A"));
+		assertEquals(expected[5], coverage.getHits("STATE_E", "RETRY", "STATE_E"));
+		assertEquals(0, coverage.getHits("STATE_B", "RETRY", "STATE_D"));
+		assertEquals(i + 1 - expected[4], coverage.getLineCount());
+		assertEquals(expected[3], coverage.getUnmatchedCount());
+		assertEquals(8, coverage.getTransitionCount());
+		assertEquals(4, coverage.getExercisedCount());
+	}
+
+	@Test
+	public void countsTheSameWithOneChunk() throws IOException {
+		writeTrace("STATE_A,EVENT_1,STATE_B\r\nSTATE_A,EVENT_1,STATE_B\nSTATE_B,EVENT_3,STATE_E\r\n"
+				+ "STATE_A,EVENT_2,STATE_B\nSTATE_B,EVENT_3,STATE_E");
+
+		TransitionCoverage coverage = new StateMachineTraceAnalyzer(TestStateMachines.example())
+				.analyze(trace.getPath());
+
+		assertEquals(2, coverage.getHits("STATE_A", "EVENT_1", "STATE_B"));
+		assertEquals(2, coverage.getHits("STATE_B", "EVENT_3", "STATE_E"));
+		assertTrue(coverage.isExercised("STATE_B", "EVENT_3", "STATE_E"));
+		assertFalse(coverage.isExercised("STATE_B", "EVENT_2", "STATE_C"));
+		assertEquals(5, coverage.getLineCount());
+		assertEquals(1, coverage.getUnmatchedCount());
+	}
+
+	@Test
+	public void readsCustomColumnsAndDelimiter() throws IOException {
+		writeTrace("2018-06-01 10:00:00;example;STATE_A;EVENT_1;STATE_B\n"
+				+ "2018-06-01 10:00:01;example; STATE_B ;\tRETRY; STATE_D\n" + "2018-06-01 10:00:02;example;STATE_D\n"
+				+ "STATE_D,EVENT_4,STATE_A\n");
+
+		StateMachineTraceAnalyzer analyzer = new StateMachineTraceAnalyzer(TestStateMachines.example());
+		analyzer.setDelimiter(';');
+		analyzer.setColumns(2, 3, 4);
+		TransitionCoverage coverage = analyzer.analyze(trace.getPath());
+
+		assertEquals(1, coverage.getHits("STATE_A", "EVENT_1", "STATE_B"));
+		assertEquals(1, coverage.getHits("STATE_B", "RETRY", "STATE_D"));
+		assertEquals(0, coverage.getHits("STATE_D", "EVENT_4", "STATE_A"));
+		assertEquals(4, coverage.getLineCount());
+		assertEquals(2, coverage.getUnmatchedCount());
+	}
+
+	@Test
+	public void matchesTransitionsOfSubstates() throws IOException {
+		writeTrace("A,deep,B2\nB1,in,B2\nB2,out,D\nQ1,q,Q2\nB22,,B21\nX,xy,Y\nA,deep,B1\n");
+
+		TransitionCoverage coverage = new StateMachineTraceAnalyzer(TestStateMachines.hierarchy())
+				.analyze(trace.getPath());
+
+		assertEquals(1, coverage.getHits("A", "deep", "B2"));
+		assertEquals(1, coverage.getHits("B1", "in", "B2"));
+		assertEquals(1, coverage.getHits("B2", "out", "D"));
+		assertEquals(1, coverage.getHits("Q1", "q", "Q2"));
+		assertEquals(1, coverage.getHits("B22", "", "B21"));
+		assertEquals(1, coverage.getHits("X", "xy", "Y"));
+		assertEquals(1, coverage.getUnmatchedCount());
+		// the 11 transitions of the machine and the one of the shared submachine
+		assertEquals(12, coverage.getTransitionCount());
+	}
+
+	@Test
+	public void readsAnEmptyTrace() throws IOException {
+		writeTrace("");
+
+		TransitionCoverage coverage = new StateMachineTraceAnalyzer(TestStateMachines.example())
+				.analyze(trace.getPath());
+
+		assertEquals(0, coverage.getLineCount());
+		assertEquals(0, coverage.getExercisedCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsChunksTooSmall() {
+		new StateMachineTraceAnalyzer(TestStateMachines.example()).setChunkSize(BLOCK_SIZE - 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsChunksTooLargeToMap() {
+		new StateMachineTraceAnalyzer(TestStateMachines.example()).setChunkSize(Integer.MAX_VALUE);
+	}
+
+}
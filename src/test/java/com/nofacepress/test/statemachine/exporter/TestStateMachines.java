@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine.exporter;
+
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineBuilder;
+import org.springframework.statemachine.config.StateMachineBuilder.Builder;
+
+import com.nofacepress.test.statemachine.example.MyEvents;
+import com.nofacepress.test.statemachine.example.MyStateMachineConfiguration;
+import com.nofacepress.test.statemachine.example.MyStates;
+
+/**
+ * State machines for the exporter tests, built the way Spring builds them. The
+ * machines are never started.
+ */
+public class TestStateMachines {
+
+	/**
+	 * @return the example state machine of
+	 *         <code>MyStateMachineConfiguration</code>.
+	 */
+	public static StateMachine<MyStates, MyEvents> example() {
+		try {
+			Builder<MyStates, MyEvents> builder = StateMachineBuilder.builder();
+			MyStateMachineConfiguration config = new MyStateMachineConfiguration();
+			config.configure(builder.configureStates());
+			config.configure(builder.configureTransitions());
+			return builder.build();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A state machine with nested, orthogonal and shared states:
+	 *
+	 * <pre>
+	 * A -go-> B, A -deep-> B2, B2 -out-> D, B -next-> C, C -share-> E, E -other-> F
+	 * B has the substates B1 -in-> B2, B2 has the substates B21 -inner-> B22 -> B21
+	 * C has the orthogonal regions P1 -p-> P2 and Q1 -q-> Q2
+	 * E and F share the submachine X -xy-> Y
+	 * </pre>
+	 *
+	 * Spring keeps all the transitions but those of the shared submachine on the
+	 * top level machine.
+	 *
+	 * @return the state machine
+	 */
+	public static StateMachine<String, String> hierarchy() {
+		try {
+			Builder<String, String> shared = StateMachineBuilder.builder();
+			shared.configureStates().withStates().initial("X").state("Y");
+			shared.configureTransitions().withExternal().source("X").target("Y").event("xy");
+			StateMachine<String, String> submachine = shared.build();
+
+			Builder<String, String> builder = StateMachineBuilder.builder();
+			builder.configureStates() //
+					.withStates().initial("A").state("B").state("C").state("D").state("E", submachine)
+					.state("F", submachine).and() //
+					.withStates().parent("B").initial("B1").state("B2").and() //
+					.withStates().parent("B2").initial("B21").state("B22").and() //
+					.withStates().parent("C").initial("P1").state("P2").and() //
+					.withStates().parent("C").initial("Q1").state("Q2");
+			builder.configureTransitions() //
+					.withExternal().source("A").target("B").event("go").and() //
+					.withExternal().source("A").target("B2").event("deep").and() //
+					.withExternal().source("B1").target("B2").event("in").and() //
+					.withExternal().source("B21").target("B22").event("inner").and() //
+					.withExternal().source("B22").target("B21").and() //
+					.withExternal().source("B2").target("D").event("out").and() //
+					.withExternal().source("B").target("C").event("next").and() //
+					.withExternal().source("P1").target("P2").event("p").and() //
+					.withExternal().source("Q1").target("Q2").event("q").and() //
+					.withExternal().source("C").target("E").event("share").and() //
+					.withExternal().source("E").target("F").event("other");
+			return builder.build();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}